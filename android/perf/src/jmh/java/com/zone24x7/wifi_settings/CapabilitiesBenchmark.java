@@ -0,0 +1,54 @@
+package com.zone24x7.wifi_settings;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing capability strings, and the per BSSID cached lookup used on
+ * every scan.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CapabilitiesBenchmark {
+
+    private List<AccessPoint> scan;
+
+    @Setup
+    public void setUp() {
+        scan = Fixtures.accessPoints(500, 7);
+    }
+
+    /**
+     * All the sample strings once each, so divide by their count.
+     */
+    @Benchmark
+    public int parse() {
+        int masks = 0;
+        for (String capabilities : Fixtures.CAPABILITIES) {
+            masks ^= Capabilities.parse(capabilities);
+        }
+        return masks;
+    }
+
+    /**
+     * A whole 500 access point scan through the cache.
+     */
+    @Benchmark
+    public int cachedScan() {
+        int masks = 0;
+        for (AccessPoint ap : scan) {
+            masks ^= Capabilities.of(ap);
+        }
+        return masks;
+    }
+
+}
@@ -0,0 +1,183 @@
+package com.zone24x7.wifi_settings;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Deterministic scan results and saved profiles for the benchmarks.
+ */
+final class Fixtures {
+
+    // Seen in the field, most common first.
+    static final String[] CAPABILITIES = {
+            "[WPA2-PSK-CCMP][ESS]",
+            "[WPA-PSK-CCMP+TKIP][WPA2-PSK-CCMP+TKIP][ESS]",
+            "[WPA2-PSK-CCMP][RSN-PSK+SAE-CCMP][ESS][MFPC]",
+            "[ESS]",
+            "[WPA2-EAP-CCMP][ESS]",
+            "[RSN-SAE-CCMP][ESS][MFPR][MFPC]",
+            "[RSN-OWE-CCMP][ESS][MFPR][MFPC]",
+            "[WEP][ESS]",
+            "[WPA2-PSK+FT/PSK-CCMP][ESS][WPS]",
+            "[RSN-SUITE-B-192-GCMP-256][ESS][MFPR][MFPC]",
+    };
+
+    private static final int[] FREQUENCIES = {
+            2412, 2437, 2462, 5180, 5200, 5240, 5500, 5745, 5785, 5825,
+    };
+
+    private Fixtures() {
+    }
+
+    /**
+     * About three access points per SSID, like a building full of mesh
+     * and enterprise networks.
+     */
+    static List<AccessPoint> accessPoints(int count, long seed) {
+        Random random = new Random(seed);
+        List<AccessPoint> list = new ArrayList<>(count);
+        int ssids = Math.max(1, count / 3);
+        for (int i = 0; i < count; i++) {
+            list.add(new AccessPoint(
+                    ssid(random.nextInt(ssids)),
+                    bssid(i),
+                    CAPABILITIES[Math.min(CAPABILITIES.length - 1, (int) Math.abs(random.nextGaussian() * 3))],
+                    -30 - random.nextInt(60),
+                    FREQUENCIES[random.nextInt(FREQUENCIES.length)],
+                    1000000L * i));
+        }
+        return list;
+    }
+
+    static List<SavedNetwork> savedNetworks(int count) {
+        List<SavedNetwork> list = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            list.add(new SavedNetwork("\"" + ssid(i) + "\"", i, ConfiguredNetworks.SECURITY_PSK));
+        }
+        return list;
+    }
+
+    static String ssid(int i) {
+        return "network-" + i;
+    }
+
+    static String bssid(int i) {
+        return String.format(Locale.ROOT, "02:00:%02x:%02x:%02x:%02x",
+                (i >> 24) & 0xff, (i >> 16) & 0xff, (i >> 8) & 0xff, i & 0xff);
+    }
+
+    /**
+     * Associated the moment it is asked, so a benchmark only measures the
+     * plugin side of a connect.
+     */
+    static final WifiBackend.Association CONNECTED = new WifiBackend.Association() {
+        @Override
+        public Map<String, Object> await(long timeoutMillis) {
+            Map<String, Object> m = new HashMap<>();
+            m.put("connected", true);
+            m.put("timeToAssociateMillis", 0L);
+            m.put("timeToIpMillis", 0L);
+            return m;
+        }
+
+        @Override
+        public void stop() {
+        }
+    };
+
+    /**
+     * A {@link WifiBackend} that only serves the given lists.
+     */
+    static class StaticBackend implements WifiBackend {
+
+        private final List<AccessPoint> scans;
+        private final List<SavedNetwork> saved;
+
+        StaticBackend(List<AccessPoint> scans, List<SavedNetwork> saved) {
+            this.scans = scans;
+            this.saved = saved;
+        }
+
+        @Override
+        public List<AccessPoint> scanResults() {
+            return new ArrayList<>(scans);
+        }
+
+        @Override
+        public boolean startScan() {
+            return true;
+        }
+
+        @Override
+        public List<SavedNetwork> configuredNetworks() {
+            return new ArrayList<>(saved);
+        }
+
+        @Override
+        public int addNetwork(Profile profile) {
+            return -1;
+        }
+
+        @Override
+        public int updateNetwork(int networkId, Profile profile) {
+            return -1;
+        }
+
+        @Override
+        public boolean removeNetwork(int networkId) {
+            return false;
+        }
+
+        @Override
+        public boolean saveConfiguration() {
+            return true;
+        }
+
+        @Override
+        public boolean enableNetwork(int networkId) {
+            return true;
+        }
+
+        @Override
+        public boolean reconnect() {
+            return true;
+        }
+
+        @Override
+        public boolean disconnect() {
+            return true;
+        }
+
+        @Override
+        public LinkInfo connectionInfo() {
+            return null;
+        }
+
+        @Override
+        public Association watch(String ssid, Metrics metrics) {
+            return CONNECTED;
+        }
+
+        @Override
+        public void addListener(Listener listener) {
+        }
+
+        @Override
+        public void removeListener(Listener listener) {
+        }
+
+        @Override
+        public void addConfigurationListener(ConfigurationListener listener) {
+        }
+
+        @Override
+        public void removeConfigurationListener(ConfigurationListener listener) {
+        }
+
+    }
+
+}
@@ -0,0 +1,58 @@
+package com.zone24x7.wifi_settings;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Looking an SSID up in the saved profiles, from the cache and after
+ * the table was invalidated.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ProfileLookupBenchmark {
+
+    @Param({"10", "1000"})
+    public int profiles;
+
+    private ConfiguredNetworks configuredNetworks;
+    private String[] ssids;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        configuredNetworks = new ConfiguredNetworks(new Fixtures.StaticBackend(
+                Collections.<AccessPoint>emptyList(), Fixtures.savedNetworks(profiles)));
+        ssids = new String[profiles];
+        for (int i = 0; i < profiles; i++) {
+            ssids[i] = Fixtures.ssid(i);
+        }
+    }
+
+    @Benchmark
+    public Object hit() {
+        next = (next + 1) % ssids.length;
+        return configuredNetworks.get(ssids[next]);
+    }
+
+    @Benchmark
+    public Object miss() {
+        return configuredNetworks.get("not-saved");
+    }
+
+    @Benchmark
+    public Object reload() {
+        configuredNetworks.invalidate();
+        return configuredNetworks.get(ssids[0]);
+    }
+
+}
@@ -0,0 +1,66 @@
+package com.zone24x7.wifi_settings;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serializing a scan for the method channel, in both formats.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ScanEncoderBenchmark {
+
+    @Param({"50", "500", "2000"})
+    public int accessPoints;
+
+    private List<AccessPoint> scan;
+    private ScanQuery query;
+
+    @Setup
+    public void setUp() {
+        scan = Fixtures.accessPoints(accessPoints, 42);
+        Map<String, Object> m = new HashMap<>();
+        m.put("minLevel", -75);
+        m.put("band", ScanQuery.BAND_5_GHZ);
+        m.put("limit", 10);
+        m.put("fields", Arrays.asList("ssid", "level"));
+        query = ScanQuery.of(m);
+    }
+
+    @Benchmark
+    public Object maps() {
+        return ScanEncoder.encode(scan, ScanEncoder.FORMAT_MAP);
+    }
+
+    @Benchmark
+    public Object columnar() {
+        return ScanEncoder.encode(scan, ScanEncoder.FORMAT_COLUMNAR);
+    }
+
+    @Benchmark
+    public Object columnarSecurityMask() {
+        return ScanEncoder.encode(scan, ScanEncoder.FORMAT_COLUMNAR, true);
+    }
+
+    /**
+     * Ten strongest 5 GHz networks, SSID and level only.
+     */
+    @Benchmark
+    public Object columnarQuery() {
+        return ScanEncoder.encode(query.apply(scan), ScanEncoder.FORMAT_COLUMNAR, false, query.fields);
+    }
+
+}
@@ -0,0 +1,61 @@
+package com.zone24x7.wifi_settings;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writing the cold start snapshot after a scan, and mapping it back in.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SnapshotStoreBenchmark {
+
+    @Param({"50", "500", "2000"})
+    public int accessPoints;
+
+    private File file;
+    private SnapshotStore store;
+    private List<AccessPoint> scan;
+    private Collection<ConfiguredNetworks.Entry> known;
+
+    @Setup
+    public void setUp() throws IOException {
+        file = File.createTempFile("snapshot", ".bin");
+        store = new SnapshotStore(file);
+        scan = Fixtures.accessPoints(accessPoints, 42);
+        known = new ConfiguredNetworks(new Fixtures.StaticBackend(
+                scan, Fixtures.savedNetworks(50))).all();
+        store.write(System.currentTimeMillis(), scan, known);
+    }
+
+    @TearDown
+    public void tearDown() {
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+
+    @Benchmark
+    public void write() throws IOException {
+        store.write(System.currentTimeMillis(), scan, known);
+    }
+
+    @Benchmark
+    public Object read() {
+        return store.read();
+    }
+
+}
@@ -0,0 +1,454 @@
+package com.zone24x7.wifi_settings;
+
+import java.io.FileReader;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replays scripted sessions against a {@link SimulatedWifi} through the
+ * same scan, lookup and connect code the plugin runs, and reports
+ * throughput, success rate and latency percentiles per operation.
+ * <p>
+ * A scenario is a properties file, see perf/scenarios. Every session
+ * runs the comma separated {@code steps}:
+ * <ul>
+ * <li>{@code scan:maxAgeMillis} asks the plugin's {@link ScanScheduler},
+ * which serves the current results when they are young enough and
+ * otherwise starts a scan, or joins the one in flight, and waits</li>
+ * <li>{@code list} encodes the current results like listWifiNetworks</li>
+ * <li>{@code connect} and {@code connectAndWait} pick an SSID</li>
+ * <li>{@code connectToBest:n} ranks n SSIDs and tries them in order</li>
+ * <li>{@code stage} prepares a connect to an SSID, {@code activate}
+ * switches to the last one staged and waits for it</li>
+ * <li>{@code forget} removes the profiles the session saved</li>
+ * <li>{@code idle:millis} waits</li>
+ * </ul>
+ * With {@code retryAttempts} above 1 connects go through a
+ * {@link RetryPolicy} and a connect that needed more than one attempt is
+ * reported as {@code retried}.
+ * <p>
+ * Connect steps run one at a time like the plugin's ConnectQueue makes
+ * them, the rest concurrently. Operation latencies are reported in
+ * simulated milliseconds; the plugin phases from {@link Metrics} are
+ * wall clock, which is the time the plugin code itself took.
+ */
+final class ScenarioRunner {
+
+    private static class Op {
+
+        final String name;
+        private long[] samples = new long[256];
+        private int count;
+        private int succeeded;
+        private final Map<String, Integer> outcomes = new TreeMap<>();
+
+        Op(String name) {
+            this.name = name;
+        }
+
+        synchronized void record(long nanos, String outcome, boolean ok) {
+            if (count == samples.length) {
+                samples = Arrays.copyOf(samples, count * 2);
+            }
+            samples[count++] = nanos;
+            if (ok) {
+                succeeded++;
+            }
+            Integer n = outcomes.get(outcome);
+            outcomes.put(outcome, n == null ? 1 : n + 1);
+        }
+
+    }
+
+    private final Properties config;
+    private final long seed;
+    private final int sessions;
+    private final int threads;
+    private final double timeScale;
+    private final double wrongPassword;
+    private final long connectTimeoutMillis;
+    private final boolean pinBssid;
+    private final String[] steps;
+    // Null without retries.
+    private final RetryPolicy retry;
+
+    private final SimulatedWifi wifi;
+    private final Metrics metrics = new Metrics();
+    private final NetworkIndex index;
+    private final ScanScheduler scanScheduler;
+    private final ConfiguredNetworks configuredNetworks;
+    private final ProfileReconciler reconciler;
+    private final WiFiConnector connector;
+
+    private final Object connectLock = new Object();
+    private final Map<String, Op> ops = new LinkedHashMap<>();
+
+    ScenarioRunner(Properties config) {
+
+        this.config = config;
+        this.seed = Long.parseLong(config.getProperty("seed", "1"));
+        this.sessions = Integer.parseInt(config.getProperty("sessions", "1000"));
+        this.threads = Integer.parseInt(config.getProperty("threads", "1"));
+        this.timeScale = Double.parseDouble(config.getProperty("timeScale", "0.01"));
+        this.wrongPassword = Double.parseDouble(config.getProperty("wrongPassword", "0"));
+        this.connectTimeoutMillis = Long.parseLong(config.getProperty("connectTimeoutMillis", "15000"));
+        this.pinBssid = Boolean.parseBoolean(config.getProperty("pinBssid", "false"));
+        this.steps = config.getProperty("steps", "scan:30000,connectAndWait").split("\\s*,\\s*");
+        this.retry = retryPolicy(config);
+
+        this.wifi = new SimulatedWifi(config);
+        this.index = new NetworkIndex(wifi);
+        // The simulated system throttles scans like Android P and later.
+        this.scanScheduler = new ScanScheduler(wifi, wifi.clock(), true);
+        this.configuredNetworks = new ConfiguredNetworks(wifi);
+        this.reconciler = new ProfileReconciler(wifi, configuredNetworks, metrics);
+        this.connector = new WiFiConnector(wifi, index, configuredNetworks, reconciler, metrics);
+
+        for (String step : steps) {
+            String name = name(step);
+            if (!name.equals("idle") && !ops.containsKey(name)) {
+                ops.put(name, new Op(name));
+            }
+        }
+
+    }
+
+    /**
+     * @param args scenario file, then key=value pairs overriding it
+     */
+    public static void main(String[] args) throws Exception {
+
+        if (args.length == 0) {
+            System.err.println("usage: ScenarioRunner <scenario.properties> [key=value ...]");
+            System.exit(2);
+        }
+
+        Properties config = new Properties();
+        try (Reader reader = new FileReader(args[0])) {
+            config.load(reader);
+        }
+        for (int i = 1; i < args.length; i++) {
+            int eq = args[i].indexOf('=');
+            if (eq > 0) {
+                config.setProperty(args[i].substring(0, eq).trim(), args[i].substring(eq + 1).trim());
+            }
+        }
+        config.setProperty("scenario", args[0]);
+
+        Trace.setLevel(Trace.OFF);
+        new ScenarioRunner(config).run(System.out);
+
+    }
+
+    void run(PrintStream out) throws InterruptedException {
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        final CountDownLatch done = new CountDownLatch(sessions);
+        long t = System.nanoTime();
+
+        for (int i = 0; i < sessions; i++) {
+            final int session = i;
+            pool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        session(session);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+
+        done.await();
+        long wallNanos = System.nanoTime() - t;
+        pool.shutdown();
+        scanScheduler.dispose();
+        wifi.dispose();
+
+        report(out, wallNanos);
+
+    }
+
+    // Helpers
+
+    private void session(int session) {
+
+        wifi.beginSession(seed * 1000003 + session);
+        Random random = new Random(seed * 7919 + session);
+        List<String> saved = new ArrayList<>();
+        List<StagedNetwork> staged = new ArrayList<>();
+
+        for (String step : steps) {
+
+            String name = name(step);
+            long argument = argument(step);
+
+            if (name.equals("idle")) {
+                sleep(argument);
+                continue;
+            }
+
+            long t = System.nanoTime();
+            String outcome;
+            try {
+                outcome = step(name, argument, random, saved, staged);
+            } catch (RuntimeException e) {
+                outcome = e.getMessage();
+            }
+            long nanos = System.nanoTime() - t;
+            ops.get(name).record(nanos, outcome, !outcome.equals("timeout") && !isError(outcome));
+
+        }
+
+    }
+
+    /**
+     * @return what happened, an {@link EC} name on failure
+     */
+    private String step(String name, long argument, Random random, List<String> saved, List<StagedNetwork> staged) {
+
+        switch (name) {
+            case "scan":
+                return scan(argument);
+            case "list":
+                ScanEncoder.encode(wifi.scanResults(), ScanEncoder.FORMAT_COLUMNAR, true);
+                return "ok";
+            case "connect":
+            case "connectAndWait": {
+                ConnectRequest request = request(wifi.pickSsid(random), random);
+                saved.add(request.ssid);
+                synchronized (connectLock) {
+                    return connect(request, name.equals("connectAndWait"));
+                }
+            }
+            case "connectToBest":
+                return connectToBest((int) Math.max(1, argument), random, saved);
+            case "stage": {
+                ConnectRequest request = request(wifi.pickSsid(random), random);
+                saved.add(request.ssid);
+                staged.add(connector.stage(request));
+                return "ok";
+            }
+            case "activate":
+                if (staged.isEmpty()) {
+                    return EC.NETWORK_NOT_STAGED.toString();
+                }
+                synchronized (connectLock) {
+                    connector.activateAndAwait(staged.remove(staged.size() - 1), connectTimeoutMillis);
+                }
+                return "ok";
+            case "forget":
+                reconciler.forget(saved);
+                saved.clear();
+                return "ok";
+            default:
+                throw new IllegalArgumentException("Unknown step " + name);
+        }
+
+    }
+
+    /**
+     * @return cached, fresh, throttled, or timeout when the scan ended
+     * without new results
+     */
+    private String scan(long maxAgeMillis) {
+
+        final Thread caller = Thread.currentThread();
+        final CountDownLatch done = new CountDownLatch(1);
+        final String[] outcome = new String[1];
+
+        scanScheduler.request(maxAgeMillis, new ScanScheduler.Callback() {
+            @Override
+            public void done(boolean fresh, boolean throttled) {
+                if (fresh) {
+                    // As the plugin does, scans are not watched otherwise.
+                    index.invalidateScans();
+                }
+                // Only served from the current results on the calling thread.
+                outcome[0] = fresh ? "fresh" : throttled ? "throttled"
+                        : Thread.currentThread() == caller ? "cached" : "timeout";
+                done.countDown();
+            }
+        });
+
+        try {
+            // The scheduler's own timeout always answers.
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return "timeout";
+        }
+        return outcome[0];
+
+    }
+
+    private String connectToBest(int count, Random random, List<String> saved) {
+
+        List<Map<String, Object>> raw = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Map<String, Object> m = new HashMap<>();
+            ConnectRequest request = request(wifi.pickSsid(random), random);
+            m.put("ssid", request.ssid);
+            m.put("password", request.password);
+            m.put("priority", random.nextInt(3));
+            raw.add(m);
+        }
+
+        String outcome = EC.NETWORK_NOT_VISIBLE.toString();
+        synchronized (connectLock) {
+            for (Candidates.Candidate candidate : Candidates.rank(raw, index, configuredNetworks)) {
+                saved.add(candidate.ssid);
+                try {
+                    return connect(request(candidate.ssid, candidate.password), true);
+                } catch (RuntimeException e) {
+                    outcome = e.getMessage();
+                }
+            }
+        }
+        return outcome;
+
+    }
+
+    /**
+     * @return ok, or retried if it took more than one attempt
+     * @throws RuntimeException carrying the {@link EC} code of the failure
+     */
+    private String connect(ConnectRequest request, boolean await) throws RuntimeException {
+
+        if (retry == null) {
+            if (await) {
+                connector.attemptAndAwait(request, connectTimeoutMillis);
+            } else {
+                connector.attempt(request);
+            }
+            return "ok";
+        }
+
+        Map<String, Object> m = retry.run(connector, request, await, connectTimeoutMillis);
+        if (!Boolean.TRUE.equals(m.get("connected"))) {
+            throw new RuntimeException((String) m.get("error"));
+        }
+        return ((List<?>) m.get("attempts")).size() > 1 ? "retried" : "ok";
+
+    }
+
+    private RetryPolicy retryPolicy(Properties config) {
+
+        int attempts = Integer.parseInt(config.getProperty("retryAttempts", "1"));
+        if (attempts <= 1) {
+            return null;
+        }
+
+        RetryPolicy.Sleeper sleeper = new RetryPolicy.Sleeper() {
+            @Override
+            public void sleep(long millis) throws InterruptedException {
+                TimeUnit.MICROSECONDS.sleep((long) (millis * 1000 * timeScale));
+            }
+        };
+        return new RetryPolicy(attempts,
+                Long.parseLong(config.getProperty("retryBackoffMillis", "500")),
+                Long.parseLong(config.getProperty("retryMaxBackoffMillis", "8000")),
+                2, 0.5,
+                Boolean.parseBoolean(config.getProperty("retryFallbackToFresh", "true")),
+                new Random(seed), sleeper);
+
+    }
+
+    private ConnectRequest request(String ssid, Random random) {
+        String password = random.nextDouble() < wrongPassword ? "wrong-password" : wifi.password(ssid);
+        return request(ssid, password);
+    }
+
+    private ConnectRequest request(String ssid, String password) {
+        try {
+            return ConnectRequest.of(ssid, password, null, pinBssid);
+        } catch (Exception e) {
+            throw new RuntimeException(e.getMessage());
+        }
+    }
+
+    private void report(PrintStream out, long wallNanos) {
+
+        double seconds = wallNanos / 1e9;
+        out.printf(Locale.ROOT, "scenario %s  seed %d  sessions %d  threads %d  timeScale %s%n",
+                config.getProperty("scenario"), seed, sessions, threads, timeScale);
+        out.printf(Locale.ROOT, "wall %.1f s  %.1f sessions/s%n%n", seconds, sessions / seconds);
+
+        out.printf(Locale.ROOT, "%-15s %7s %8s %9s %10s %10s %10s %10s  %s%n",
+                "operation", "count", "success", "ops/s", "p50 ms", "p95 ms", "p99 ms", "max ms", "outcomes");
+        for (Op op : ops.values()) {
+            synchronized (op) {
+                long[] sorted = Arrays.copyOf(op.samples, op.count);
+                Arrays.sort(sorted);
+                out.printf(Locale.ROOT, "%-15s %7d %7.1f%% %9.1f %10.1f %10.1f %10.1f %10.1f  %s%n",
+                        op.name, op.count, op.count == 0 ? 0 : 100.0 * op.succeeded / op.count, op.count / seconds,
+                        simulatedMillis(sorted, 0.50), simulatedMillis(sorted, 0.95),
+                        simulatedMillis(sorted, 0.99), simulatedMillis(sorted, 1.0), op.outcomes);
+            }
+        }
+
+        out.printf(Locale.ROOT, "%nplugin phases (wall clock)%n");
+        out.printf(Locale.ROOT, "%-18s %7s %10s %10s %10s %10s%n", "phase", "count", "avg us", "p50 us", "p99 us", "max us");
+        Map<String, Map<String, Long>> phases = new TreeMap<>(metrics.snapshot());
+        for (Map.Entry<String, Map<String, Long>> e : phases.entrySet()) {
+            Map<String, Long> m = e.getValue();
+            out.printf(Locale.ROOT, "%-18s %7d %10d %10d %10d %10d%n", e.getKey(), m.get("count"),
+                    m.get("avgMicros"), m.get("p50Micros"), m.get("p99Micros"), m.get("maxMicros"));
+        }
+
+        out.printf(Locale.ROOT, "%nscheduler %s%n", new TreeMap<>(scanScheduler.stats()));
+        out.printf(Locale.ROOT, "environment %s%n", wifi.stats());
+
+    }
+
+    private double simulatedMillis(long[] sorted, double q) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(sorted.length * q) - 1;
+        return sorted[Math.max(0, rank)] / 1e6 / timeScale;
+    }
+
+    private void sleep(long simulatedMillis) {
+        try {
+            TimeUnit.MICROSECONDS.sleep((long) (simulatedMillis * 1000 * timeScale));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static boolean isError(String outcome) {
+        for (EC ec : EC.values()) {
+            if (ec.toString().equals(outcome)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String name(String step) {
+        int colon = step.indexOf(':');
+        return colon < 0 ? step : step.substring(0, colon);
+    }
+
+    private static long argument(String step) {
+        int colon = step.indexOf(':');
+        return colon < 0 ? 0 : Long.parseLong(step.substring(colon + 1));
+    }
+
+}
@@ -0,0 +1,694 @@
+package com.zone24x7.wifi_settings;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A {@link WifiBackend} backed by a seeded model of the radio
+ * environment instead of WifiManager.
+ * <p>
+ * The environment is a set of SSIDs, each served by one or more mesh
+ * access points whose levels drift with every scan. Scans take time
+ * and are throttled like on Android P (four per two minutes). Every call
+ * that would be a binder call on a device is delayed, and enableNetwork,
+ * reconnect and the authentication can be made to fail at configurable
+ * rates.
+ * <p>
+ * Simulated time runs {@code 1 / timeScale} times faster than the wall
+ * clock, so a run with timeScale=0.01 sleeps 10ms for a 1s association.
+ * Faults are drawn from the random of the session set with
+ * {@link #beginSession(long)}, so a session sees the same faults on
+ * every run no matter how sessions are spread over threads. The drift
+ * of the environment is shared and only repeats with a single thread.
+ */
+class SimulatedWifi implements WifiBackend {
+
+    private static final String[] CAPABILITIES = {
+            "[WPA2-PSK-CCMP][ESS]",
+            "[WPA2-PSK-CCMP][ESS]",
+            "[WPA2-PSK-CCMP][ESS]",
+            "[WPA-PSK-CCMP+TKIP][WPA2-PSK-CCMP+TKIP][ESS]",
+            "[WPA2-PSK-CCMP][RSN-PSK+SAE-CCMP][ESS][MFPC]",
+            "[RSN-SAE-CCMP][ESS][MFPR][MFPC]",
+            "[ESS]",
+            "[RSN-OWE-CCMP][ESS][MFPR][MFPC]",
+            "[WPA2-EAP-CCMP][ESS]",
+            "[WEP][ESS]",
+    };
+
+    private static final int[] FREQUENCIES = {2412, 2437, 2462, 5180, 5240, 5500, 5745, 5805};
+
+    private static final int THROTTLE_SCANS = 4;
+    private static final long THROTTLE_WINDOW_MILLIS = 2 * 60 * 1000;
+    private static final int VISIBLE_LEVEL = -92;
+
+    private static class Radio {
+
+        final String ssid;
+        final String bssid;
+        final String capabilities;
+        final String password;
+        final int frequency;
+        final double baseLevel;
+        double level;
+
+        Radio(String ssid, String bssid, String capabilities, String password, int frequency, double baseLevel) {
+            this.ssid = ssid;
+            this.bssid = bssid;
+            this.capabilities = capabilities;
+            this.password = password;
+            this.frequency = frequency;
+            this.baseLevel = baseLevel;
+            this.level = baseLevel;
+        }
+
+    }
+
+    private static class Stored {
+
+        final String ssid;
+        final String password;
+        final int security;
+        final String bssid;
+
+        Stored(String ssid, String password, int security, String bssid) {
+            this.ssid = ssid;
+            this.password = password;
+            this.security = security;
+            this.bssid = bssid;
+        }
+
+    }
+
+    /**
+     * Outcome of one reconnect, decided when it is accepted. Times are
+     * simulated milliseconds, -1 for what never happens.
+     */
+    private static class Link {
+
+        final String ssid;
+        final long associatedAt;
+        final long connectedAt;
+        final long authFailedAt;
+
+        Link(String ssid, long associatedAt, long connectedAt, long authFailedAt) {
+            this.ssid = ssid;
+            this.associatedAt = associatedAt;
+            this.connectedAt = connectedAt;
+            this.authFailedAt = authFailedAt;
+        }
+
+    }
+
+    // Environment.
+    private final double timeScale;
+    private final double driftDb;
+    private final long scanLatencyMillis;
+    private final double binderMillis;
+    private final double binderMillisPerItem;
+    private final long associateMillis;
+    private final long dhcpMillis;
+    private final long authMillis;
+
+    // Faults, as probabilities per call.
+    private final double enableFailure;
+    private final double reconnectRefusal;
+    private final double authTimeout;
+
+    private final long startedAtNanos = System.nanoTime();
+    private final Random world;
+    private final ThreadLocal<Random> session = new ThreadLocal<>();
+    private final List<Radio> radios = new ArrayList<>();
+    private final Map<String, List<Radio>> bySsid = new HashMap<>();
+    private final List<String> ssids = new ArrayList<>();
+    // SSIDs a scripted session can join without an EAP identity.
+    private final List<String> personal = new ArrayList<>();
+    private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final CopyOnWriteArrayList<ConfigurationListener> configurationListeners = new CopyOnWriteArrayList<>();
+    private final ScheduledExecutorService radio = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "simulated-radio");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    // Guarded by this.
+    private List<AccessPoint> snapshot = Collections.emptyList();
+    private final long[] scansStartedAt = new long[THROTTLE_SCANS];
+    private int oldestScan = 0;
+    private boolean scanning = false;
+    private final TreeMap<Integer, Stored> saved = new TreeMap<>();
+    private int nextNetworkId = 0;
+    private int enabled = -1;
+    private volatile Link link;
+
+    private long scansStarted;
+    private long scansThrottled;
+    private long enableFailures;
+    private long reconnectRefusals;
+    private long authTimeouts;
+    private long authFailures;
+
+    /**
+     * @param config the scenario, see perf/scenarios for the keys
+     */
+    SimulatedWifi(Properties config) {
+
+        long seed = Long.parseLong(config.getProperty("seed", "1"));
+        int accessPoints = Integer.parseInt(config.getProperty("accessPoints", "2000"));
+        int meshMax = Integer.parseInt(config.getProperty("meshMax", "4"));
+
+        this.timeScale = Double.parseDouble(config.getProperty("timeScale", "0.01"));
+        this.driftDb = Double.parseDouble(config.getProperty("driftDb", "3"));
+        this.scanLatencyMillis = Long.parseLong(config.getProperty("scanLatencyMillis", "3000"));
+        this.binderMillis = Double.parseDouble(config.getProperty("binderMillis", "2"));
+        this.binderMillisPerItem = Double.parseDouble(config.getProperty("binderMillisPerItem", "0.02"));
+        this.associateMillis = Long.parseLong(config.getProperty("associateMillis", "800"));
+        this.dhcpMillis = Long.parseLong(config.getProperty("dhcpMillis", "600"));
+        this.authMillis = Long.parseLong(config.getProperty("authMillis", "400"));
+        this.enableFailure = Double.parseDouble(config.getProperty("enableFailure", "0"));
+        this.reconnectRefusal = Double.parseDouble(config.getProperty("reconnectRefusal", "0"));
+        this.authTimeout = Double.parseDouble(config.getProperty("authTimeout", "0"));
+
+        this.world = new Random(seed);
+        build(accessPoints, meshMax);
+        this.snapshot = visible();
+
+    }
+
+    /**
+     * Makes the calling thread draw its faults from a random seeded with
+     * the given value, until the next call.
+     */
+    void beginSession(long seed) {
+        session.set(new Random(seed));
+    }
+
+    /**
+     * @return an SSID that needs no EAP identity, for scripted sessions.
+     * It may well be out of range.
+     */
+    String pickSsid(Random random) {
+        return personal.get(random.nextInt(personal.size()));
+    }
+
+    /**
+     * @return the password the access points of the SSID expect
+     */
+    String password(String ssid) {
+        return bySsid.get(ssid).get(0).password;
+    }
+
+    /**
+     * @return milliseconds of simulated time since the simulator was created
+     */
+    long now() {
+        return (long) ((System.nanoTime() - startedAtNanos) / 1e6 / timeScale);
+    }
+
+    /**
+     * @return simulated time for a {@link ScanScheduler}, with delayed
+     * work run on the radio thread that also reports the scans
+     */
+    ScanScheduler.Clock clock() {
+        return new ScanScheduler.Clock() {
+
+            private final Map<Runnable, Future<?>> scheduled = new ConcurrentHashMap<>();
+
+            @Override
+            public long elapsedRealtime() {
+                return now();
+            }
+
+            @Override
+            public void postDelayed(Runnable runnable, long delayMillis) {
+                scheduled.put(runnable, radio.schedule(runnable, wall(delayMillis), TimeUnit.MICROSECONDS));
+            }
+
+            @Override
+            public void removeCallbacks(Runnable runnable) {
+                Future<?> future = scheduled.remove(runnable);
+                if (future != null) {
+                    future.cancel(false);
+                }
+            }
+
+        };
+    }
+
+    /**
+     * @return what the environment did so far, for the report
+     */
+    synchronized Map<String, Long> stats() {
+        Map<String, Long> m = new TreeMap<>();
+        m.put("accessPoints", (long) radios.size());
+        m.put("ssids", (long) ssids.size());
+        m.put("savedProfiles", (long) saved.size());
+        m.put("scansStarted", scansStarted);
+        m.put("scansThrottled", scansThrottled);
+        m.put("enableFailures", enableFailures);
+        m.put("reconnectRefusals", reconnectRefusals);
+        m.put("authTimeouts", authTimeouts);
+        m.put("authFailures", authFailures);
+        return m;
+    }
+
+    void dispose() {
+        radio.shutdownNow();
+    }
+
+    @Override
+    public List<AccessPoint> scanResults() {
+        List<AccessPoint> list;
+        synchronized (this) {
+            list = new ArrayList<>(snapshot);
+        }
+        binder(list.size());
+        return list;
+    }
+
+    @Override
+    public boolean startScan() {
+
+        binder(0);
+        long now = now();
+
+        synchronized (this) {
+            if (scanning) {
+                return true;
+            }
+            long oldest = scansStartedAt[oldestScan];
+            if (oldest != 0 && now - oldest < THROTTLE_WINDOW_MILLIS) {
+                scansThrottled++;
+                return false;
+            }
+            scansStartedAt[oldestScan] = Math.max(1, now);
+            oldestScan = (oldestScan + 1) % THROTTLE_SCANS;
+            scansStarted++;
+            scanning = true;
+        }
+
+        radio.schedule(new Runnable() {
+            @Override
+            public void run() {
+                completeScan();
+            }
+        }, wall(scanLatency()), TimeUnit.MICROSECONDS);
+        return true;
+
+    }
+
+    @Override
+    public List<SavedNetwork> configuredNetworks() {
+        List<SavedNetwork> list = new ArrayList<>();
+        synchronized (this) {
+            for (Map.Entry<Integer, Stored> e : saved.entrySet()) {
+                Stored stored = e.getValue();
+                list.add(new SavedNetwork("\"" + stored.ssid + "\"", e.getKey(), stored.security));
+            }
+        }
+        binder(list.size());
+        return list;
+    }
+
+    @Override
+    public int addNetwork(Profile profile) throws RuntimeException {
+        binder(0);
+        int networkId;
+        synchronized (this) {
+            networkId = nextNetworkId++;
+            saved.put(networkId, stored(profile));
+        }
+        configuredNetworksChanged();
+        return networkId;
+    }
+
+    @Override
+    public int updateNetwork(int networkId, Profile profile) throws RuntimeException {
+        binder(0);
+        synchronized (this) {
+            if (!saved.containsKey(networkId)) {
+                return -1;
+            }
+            saved.put(networkId, stored(profile));
+        }
+        configuredNetworksChanged();
+        return networkId;
+    }
+
+    @Override
+    public boolean removeNetwork(int networkId) {
+        binder(0);
+        boolean removed;
+        synchronized (this) {
+            removed = saved.remove(networkId) != null;
+            if (enabled == networkId) {
+                enabled = -1;
+            }
+        }
+        if (removed) {
+            configuredNetworksChanged();
+        }
+        return removed;
+    }
+
+    @Override
+    public boolean saveConfiguration() {
+        binder(0);
+        return true;
+    }
+
+    @Override
+    public boolean enableNetwork(int networkId) {
+        binder(0);
+        synchronized (this) {
+            if (!saved.containsKey(networkId)) {
+                return false;
+            }
+            if (fault(enableFailure)) {
+                enableFailures++;
+                return false;
+            }
+            enabled = networkId;
+        }
+        return true;
+    }
+
+    /**
+     * Decides right away how the association with the enabled network
+     * will go: it never completes if no access point of it (or the
+     * pinned one) is in range or the authentication times out, and fails
+     * if the saved password is wrong. The strongest access point is
+     * joined, weaker ones take longer to associate with.
+     */
+    @Override
+    public boolean reconnect() {
+
+        binder(0);
+        long now = now();
+
+        synchronized (this) {
+
+            Stored target = saved.get(enabled);
+            if (target == null || fault(reconnectRefusal)) {
+                reconnectRefusals++;
+                return false;
+            }
+
+            Radio best = null;
+            for (Radio r : bySsidOrEmpty(target.ssid)) {
+                if (target.bssid != null && !target.bssid.equals(r.bssid)) {
+                    continue;
+                }
+                if (r.level >= VISIBLE_LEVEL && (best == null || r.level > best.level)) {
+                    best = r;
+                }
+            }
+
+            if (best == null || fault(authTimeout)) {
+                authTimeouts++;
+                link = new Link(target.ssid, -1, -1, -1);
+            } else if (!best.password.isEmpty() && !best.password.equals(target.password)) {
+                authFailures++;
+                link = new Link(target.ssid, -1, -1, now + jitter(authMillis));
+            } else {
+                // Roughly twice as slow at the edge of the range as next to the AP.
+                double weak = Math.min(1, Math.max(0, (-40 - best.level) / 50));
+                long associated = now + (long) (jitter(associateMillis) * (1 + weak));
+                link = new Link(target.ssid, associated, associated + jitter(dhcpMillis), -1);
+            }
+
+        }
+
+        return true;
+
+    }
+
+    @Override
+    public boolean disconnect() {
+        binder(0);
+        synchronized (this) {
+            link = null;
+        }
+        return true;
+    }
+
+    /**
+     * Connected once the last accepted reconnect reached its IP, to the
+     * strongest access point of the network (or the pinned one).
+     */
+    @Override
+    public LinkInfo connectionInfo() {
+
+        binder(0);
+        long now = now();
+
+        synchronized (this) {
+            Link current = link;
+            Stored target = saved.get(enabled);
+            if (current == null || current.connectedAt < 0 || current.connectedAt > now || target == null) {
+                return null;
+            }
+            Radio best = null;
+            for (Radio r : bySsidOrEmpty(current.ssid)) {
+                if ((target.bssid == null || target.bssid.equals(r.bssid)) && (best == null || r.level > best.level)) {
+                    best = r;
+                }
+            }
+            if (best == null || best.level < VISIBLE_LEVEL) {
+                return null;
+            }
+            int level = (int) Math.round(best.level);
+            // Rough 802.11ac rate for the level.
+            int linkSpeed = Math.max(6, Math.min(866, (level + 95) * 15));
+            return new LinkInfo(best.ssid, best.bssid, level, linkSpeed, best.frequency);
+        }
+
+    }
+
+    @Override
+    public Association watch(final String ssid, final Metrics metrics) {
+
+        final long startedAt = now();
+        return new Association() {
+            @Override
+            public Map<String, Object> await(long timeoutMillis) throws RuntimeException {
+
+                long deadline = startedAt + timeoutMillis;
+                Link current = link;
+                if (current == null || !current.ssid.equals(ssid)) {
+                    current = new Link(ssid, -1, -1, -1);
+                }
+
+                if (current.authFailedAt >= 0 && current.authFailedAt <= deadline) {
+                    sleepUntil(current.authFailedAt);
+                    Trace.event(Trace.AUTHENTICATION_FAILED, ssid);
+                    throw new RuntimeException(EC.AUTHENTICATION_FAILED.toString());
+                }
+
+                if (current.connectedAt < 0 || current.connectedAt > deadline) {
+                    sleepUntil(deadline);
+                    Trace.event(Trace.ASSOCIATION_TIMEOUT, ssid, timeoutMillis);
+                    throw new RuntimeException(EC.ASSOCIATION_TIMEOUT.toString());
+                }
+
+                sleepUntil(current.connectedAt);
+                long associate = current.associatedAt - startedAt;
+                long ip = current.connectedAt - startedAt;
+                // Metrics are wall clock like every other phase.
+                metrics.recordMicros(Metrics.Phase.ASSOCIATE, wall(associate));
+                metrics.recordMicros(Metrics.Phase.DHCP, wall(ip - associate));
+
+                Map<String, Object> m = new HashMap<>();
+                m.put("connected", true);
+                m.put("timeToAssociateMillis", associate);
+                m.put("timeToIpMillis", ip);
+                return m;
+
+            }
+
+            @Override
+            public void stop() {
+            }
+        };
+
+    }
+
+    @Override
+    public void addListener(Listener listener) {
+        listeners.addIfAbsent(listener);
+    }
+
+    @Override
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    @Override
+    public void addConfigurationListener(ConfigurationListener listener) {
+        configurationListeners.addIfAbsent(listener);
+    }
+
+    @Override
+    public void removeConfigurationListener(ConfigurationListener listener) {
+        configurationListeners.remove(listener);
+    }
+
+    // Helpers
+
+    /**
+     * SSIDs get between one and meshMax access points, which share all
+     * but the last octet of the BSSID and spread over both bands.
+     */
+    private void build(int accessPoints, int meshMax) {
+
+        int n = 0;
+        while (radios.size() < accessPoints) {
+
+            String ssid = String.format(Locale.ROOT, "sim-%05d", n);
+            String capabilities = CAPABILITIES[world.nextInt(CAPABILITIES.length)];
+            boolean open = capabilities.equals("[ESS]") || capabilities.contains("OWE");
+            // Well formed for the security, see Credentials.
+            String password = open ? ""
+                    : capabilities.contains("WEP") ? String.format(Locale.ROOT, "w%04d", n % 10000)
+                    : String.format(Locale.ROOT, "pw-%05d", n);
+            int mesh = Math.min(1 + world.nextInt(meshMax), accessPoints - radios.size());
+            double home = -45 - world.nextInt(45);
+
+            List<Radio> group = new ArrayList<>(mesh);
+            for (int k = 0; k < mesh; k++) {
+                String bssid = String.format(Locale.ROOT, "02:%02x:%02x:%02x:00:%02x",
+                        (n >> 16) & 0xff, (n >> 8) & 0xff, n & 0xff, k);
+                Radio r = new Radio(ssid, bssid, capabilities, password,
+                        FREQUENCIES[world.nextInt(FREQUENCIES.length)], home - world.nextInt(15));
+                group.add(r);
+                radios.add(r);
+            }
+
+            bySsid.put(ssid, group);
+            ssids.add(ssid);
+            if (!capabilities.contains("EAP")) {
+                personal.add(ssid);
+            }
+            n++;
+
+        }
+
+    }
+
+    private void completeScan() {
+
+        synchronized (this) {
+            for (Radio r : radios) {
+                // Random walk, pulled back towards where the AP usually is.
+                r.level += world.nextGaussian() * driftDb + (r.baseLevel - r.level) * 0.2;
+            }
+            snapshot = visible();
+            scanning = false;
+        }
+
+        for (Listener listener : listeners) {
+            listener.scanResultsChanged(true);
+        }
+
+    }
+
+    private List<AccessPoint> visible() {
+        long micros = now() * 1000;
+        List<AccessPoint> list = new ArrayList<>();
+        for (Radio r : radios) {
+            if (r.level >= VISIBLE_LEVEL) {
+                list.add(new AccessPoint(r.ssid, r.bssid, r.capabilities, (int) Math.round(r.level), r.frequency, micros));
+            }
+        }
+        return list;
+    }
+
+    private List<Radio> bySsidOrEmpty(String ssid) {
+        List<Radio> group = bySsid.get(ssid);
+        return group != null ? group : Collections.<Radio>emptyList();
+    }
+
+    private static Stored stored(Profile profile) {
+        int security;
+        switch (profile.security) {
+            case Profile.EAP:
+                security = ConfiguredNetworks.SECURITY_EAP;
+                break;
+            case Profile.PSK:
+            case Profile.SAE:
+                security = ConfiguredNetworks.SECURITY_PSK;
+                break;
+            case Profile.WEP:
+                security = ConfiguredNetworks.SECURITY_WEP;
+                break;
+            default:
+                security = ConfiguredNetworks.SECURITY_OPEN;
+        }
+        return new Stored(profile.request.ssid, profile.request.password, security, profile.bssid);
+    }
+
+    private void configuredNetworksChanged() {
+        for (ConfigurationListener listener : configurationListeners) {
+            listener.configuredNetworksChanged();
+        }
+    }
+
+    private boolean fault(double probability) {
+        return probability > 0 && random().nextDouble() < probability;
+    }
+
+    private long jitter(long millis) {
+        return millis / 2 + (long) (random().nextDouble() * millis);
+    }
+
+    private synchronized long scanLatency() {
+        return scanLatencyMillis / 2 + (long) (world.nextDouble() * scanLatencyMillis);
+    }
+
+    private Random random() {
+        Random random = session.get();
+        return random != null ? random : world;
+    }
+
+    /**
+     * Delays the caller like a binder call that returns the given
+     * number of items.
+     */
+    private void binder(int items) {
+        sleep(binderMillis + binderMillisPerItem * items);
+    }
+
+    private void sleepUntil(long simulatedMillis) {
+        sleep(simulatedMillis - now());
+    }
+
+    private void sleep(double simulatedMillis) {
+        long end = System.nanoTime() + (long) (simulatedMillis * 1e6 * timeScale);
+        for (long left = end - System.nanoTime(); left > 0; left = end - System.nanoTime()) {
+            LockSupport.parkNanos(left);
+        }
+    }
+
+    private long wall(long simulatedMillis) {
+        return (long) (simulatedMillis * 1000 * timeScale);
+    }
+
+}
@@ -0,0 +1,27 @@
+package com.zone24x7.wifi_settings;
+
+/**
+ * One access point out of a scan, copied from the platform scan result
+ * by the {@link WifiBackend} so that the code working on scans does not
+ * depend on the Android SDK.
+ */
+final class AccessPoint {
+
+    final String ssid;
+    final String bssid;
+    final String capabilities;
+    final int level;
+    final int frequency;
+    // When the access point was last seen, in microseconds since boot.
+    final long timestampMicros;
+
+    AccessPoint(String ssid, String bssid, String capabilities, int level, int frequency, long timestampMicros) {
+        this.ssid = ssid;
+        this.bssid = bssid;
+        this.capabilities = capabilities;
+        this.level = level;
+        this.frequency = frequency;
+        this.timestampMicros = timestampMicros;
+    }
+
+}
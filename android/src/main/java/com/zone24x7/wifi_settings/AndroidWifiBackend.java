@@ -0,0 +1,441 @@
+package com.zone24x7.wifi_settings;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.wifi.ScanResult;
+import android.net.wifi.WifiConfiguration;
+import android.net.wifi.WifiEnterpriseConfig;
+import android.net.wifi.WifiInfo;
+import android.net.wifi.WifiManager;
+import android.os.Build;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * {@link WifiBackend} on top of {@link WifiManager}. Translates scan
+ * results and saved profiles into the plain value types, builds the
+ * WifiConfiguration for a {@link Profile} and turns the system
+ * broadcasts into listener calls. A broadcast is only received while
+ * there are listeners for it.
+ */
+class AndroidWifiBackend implements WifiBackend {
+
+    /**
+     * WifiManager.CONFIGURED_NETWORKS_CHANGED_ACTION is a system API, so
+     * it is not part of the public SDK constants.
+     */
+    static final String CONFIGURED_NETWORKS_CHANGED_ACTION = "android.net.wifi.CONFIGURED_NETWORKS_CHANGE";
+
+    private final Context context;
+    private final WifiManager manager;
+    private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final CopyOnWriteArrayList<ConfigurationListener> configurationListeners = new CopyOnWriteArrayList<>();
+
+    private final BroadcastReceiver scansReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            // Every scan completion, failed ones included, is reported.
+            boolean updated = intent.getBooleanExtra(WifiManager.EXTRA_RESULTS_UPDATED, true);
+            for (Listener listener : listeners) {
+                listener.scanResultsChanged(updated);
+            }
+        }
+    };
+
+    private final BroadcastReceiver configurationReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            for (ConfigurationListener listener : configurationListeners) {
+                listener.configuredNetworksChanged();
+            }
+        }
+    };
+
+    AndroidWifiBackend(Context context, WifiManager manager) {
+        this.context = context;
+        this.manager = manager;
+    }
+
+    @Override
+    public List<AccessPoint> scanResults() {
+        List<ScanResult> results = manager().getScanResults();
+        if (results == null) {
+            return new ArrayList<>();
+        }
+        List<AccessPoint> list = new ArrayList<>(results.size());
+        for (ScanResult sr : results) {
+            list.add(new AccessPoint(sr.SSID, sr.BSSID, sr.capabilities, sr.level, sr.frequency, sr.timestamp));
+        }
+        return list;
+    }
+
+    @Override
+    public boolean startScan() {
+        return manager().startScan();
+    }
+
+    @Override
+    public List<SavedNetwork> configuredNetworks() {
+        List<WifiConfiguration> configurations = manager().getConfiguredNetworks();
+        if (configurations == null) {
+            return new ArrayList<>();
+        }
+        List<SavedNetwork> list = new ArrayList<>(configurations.size());
+        for (WifiConfiguration configuration : configurations) {
+            list.add(new SavedNetwork(configuration.SSID, configuration.networkId, security(configuration)));
+        }
+        return list;
+    }
+
+    @Override
+    public int addNetwork(Profile profile) throws RuntimeException {
+        return manager().addNetwork(configuration(profile));
+    }
+
+    @Override
+    public int updateNetwork(int networkId, Profile profile) throws RuntimeException {
+        WifiConfiguration conf = configuration(profile);
+        conf.networkId = networkId;
+        return manager().updateNetwork(conf);
+    }
+
+    @Override
+    public boolean removeNetwork(int networkId) {
+        return manager().removeNetwork(networkId);
+    }
+
+    @Override
+    public boolean saveConfiguration() {
+        return manager().saveConfiguration();
+    }
+
+    @Override
+    public boolean enableNetwork(int networkId) {
+        return manager().enableNetwork(networkId, false);
+    }
+
+    @Override
+    public boolean reconnect() {
+        return manager().reconnect();
+    }
+
+    @Override
+    public boolean disconnect() {
+        return manager().disconnect();
+    }
+
+    @Override
+    public LinkInfo connectionInfo() {
+        WifiInfo info = manager().getConnectionInfo();
+        if (info == null || info.getNetworkId() == -1) {
+            return null;
+        }
+        return new LinkInfo(ConfiguredNetworks.unquoted(info.getSSID()), info.getBSSID(),
+                info.getRssi(), info.getLinkSpeed(), frequency(info));
+    }
+
+    @Override
+    public Association watch(String ssid, Metrics metrics) {
+        AssociationWatcher watcher = new AssociationWatcher(context, manager(), metrics, ssid);
+        watcher.start();
+        return watcher;
+    }
+
+    /**
+     * The receiver is registered when the first listener is added.
+     */
+    @Override
+    public void addListener(Listener listener) {
+        synchronized (listeners) {
+            if (listeners.addIfAbsent(listener) && listeners.size() == 1) {
+                context.registerReceiver(scansReceiver, new IntentFilter(WifiManager.SCAN_RESULTS_AVAILABLE_ACTION));
+            }
+        }
+    }
+
+    /**
+     * The receiver is unregistered once the last listener is removed.
+     */
+    @Override
+    public void removeListener(Listener listener) {
+        synchronized (listeners) {
+            if (listeners.remove(listener) && listeners.isEmpty()) {
+                context.unregisterReceiver(scansReceiver);
+            }
+        }
+    }
+
+    @Override
+    public void addConfigurationListener(ConfigurationListener listener) {
+        synchronized (configurationListeners) {
+            if (configurationListeners.addIfAbsent(listener) && configurationListeners.size() == 1) {
+                context.registerReceiver(configurationReceiver, new IntentFilter(CONFIGURED_NETWORKS_CHANGED_ACTION));
+            }
+        }
+    }
+
+    @Override
+    public void removeConfigurationListener(ConfigurationListener listener) {
+        synchronized (configurationListeners) {
+            if (configurationListeners.remove(listener) && configurationListeners.isEmpty()) {
+                context.unregisterReceiver(configurationReceiver);
+            }
+        }
+    }
+
+    /**
+     * Unregisters whatever is still registered.
+     */
+    void dispose() {
+        synchronized (listeners) {
+            if (!listeners.isEmpty()) {
+                listeners.clear();
+                context.unregisterReceiver(scansReceiver);
+            }
+        }
+        synchronized (configurationListeners) {
+            if (!configurationListeners.isEmpty()) {
+                configurationListeners.clear();
+                context.unregisterReceiver(configurationReceiver);
+            }
+        }
+    }
+
+    private WifiConfiguration configuration(Profile profile) throws RuntimeException {
+        WifiConfiguration conf;
+        switch (profile.security) {
+            case Profile.EAP:
+                conf = eapNetworkConf(profile.request);
+                break;
+            case Profile.SAE:
+                conf = saeNetworkConf(profile.request);
+                break;
+            case Profile.OWE:
+                conf = oweNetworkConf(profile.request);
+                break;
+            case Profile.PSK:
+                conf = wpaNetworkConf(profile.request);
+                break;
+            case Profile.WEP:
+                conf = wepNetworkConf(profile.request);
+                break;
+            default:
+                conf = openNetworkConf(profile.request);
+        }
+        // Null lets the supplicant pick and roam between the BSSIDs.
+        conf.BSSID = profile.bssid;
+        return conf;
+    }
+
+    /**
+     * For networks using WEP protocol with RC4 stream cipher
+     * with 64bit or 128bit keys.
+     *
+     * @return WifiConfiguration
+     */
+    private WifiConfiguration wepNetworkConf(ConnectRequest request) {
+
+        WifiConfiguration conf = new WifiConfiguration();
+        conf.SSID = inDoubleQuotes(request.ssid);
+        conf.status = WifiConfiguration.Status.ENABLED;
+
+        conf.allowedKeyManagement.set(WifiConfiguration.KeyMgmt.NONE);
+        conf.allowedProtocols.set(WifiConfiguration.Protocol.RSN);
+        conf.allowedProtocols.set(WifiConfiguration.Protocol.WPA);
+        conf.allowedAuthAlgorithms.set(WifiConfiguration.AuthAlgorithm.OPEN);
+        conf.allowedAuthAlgorithms.set(WifiConfiguration.AuthAlgorithm.SHARED);
+        conf.allowedPairwiseCiphers.set(WifiConfiguration.PairwiseCipher.CCMP);
+        conf.allowedPairwiseCiphers.set(WifiConfiguration.PairwiseCipher.TKIP);
+        conf.allowedGroupCiphers.set(WifiConfiguration.GroupCipher.WEP40);
+        conf.allowedGroupCiphers.set(WifiConfiguration.GroupCipher.WEP104);
+
+        if (Credentials.isHexWepKey(request.password)) {
+            conf.wepKeys[0] = request.password;
+        } else {
+            conf.wepKeys[0] = inDoubleQuotes(request.password);
+        }
+
+        return conf;
+    }
+
+    /**
+     * For networks using WPA/WPA2 protocol with RC4 stream cipher
+     * with 256bit keys.
+     *
+     * @return WifiConfiguration
+     */
+    private WifiConfiguration wpaNetworkConf(ConnectRequest request) {
+
+        WifiConfiguration conf = new WifiConfiguration();
+        conf.SSID = inDoubleQuotes(request.ssid);
+        conf.status = WifiConfiguration.Status.ENABLED;
+
+        conf.allowedProtocols.set(WifiConfiguration.Protocol.RSN);
+        conf.allowedProtocols.set(WifiConfiguration.Protocol.WPA);
+        conf.allowedKeyManagement.set(WifiConfiguration.KeyMgmt.WPA_PSK);
+        conf.allowedPairwiseCiphers.set(WifiConfiguration.PairwiseCipher.CCMP);
+        conf.allowedPairwiseCiphers.set(WifiConfiguration.PairwiseCipher.TKIP);
+        conf.allowedGroupCiphers.set(WifiConfiguration.GroupCipher.WEP40);
+        conf.allowedGroupCiphers.set(WifiConfiguration.GroupCipher.WEP104);
+        conf.allowedGroupCiphers.set(WifiConfiguration.GroupCipher.CCMP);
+        conf.allowedGroupCiphers.set(WifiConfiguration.GroupCipher.TKIP);
+
+        // A raw 64 digit key is saved without quotes, like a hex WEP key.
+        conf.preSharedKey = request.password.length() == 64 ? request.password : inDoubleQuotes(request.password);
+
+        return conf;
+
+    }
+
+    /**
+     * For WPA3 personal networks that only offer SAE. Those cannot
+     * be configured before Android Q.
+     *
+     * @return WifiConfiguration
+     */
+    private WifiConfiguration saeNetworkConf(ConnectRequest request) {
+
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) {
+            throw new RuntimeException(EC.UNSUPPORTED_SECURITY.toString());
+        }
+
+        WifiConfiguration conf = new WifiConfiguration();
+        conf.SSID = inDoubleQuotes(request.ssid);
+        conf.status = WifiConfiguration.Status.ENABLED;
+
+        conf.allowedProtocols.set(WifiConfiguration.Protocol.RSN);
+        conf.allowedKeyManagement.set(WifiConfiguration.KeyMgmt.SAE);
+        conf.allowedPairwiseCiphers.set(WifiConfiguration.PairwiseCipher.CCMP);
+        conf.allowedGroupCiphers.set(WifiConfiguration.GroupCipher.CCMP);
+        conf.requirePMF = true;
+
+        conf.preSharedKey = inDoubleQuotes(request.password);
+
+        return conf;
+
+    }
+
+    /**
+     * For enhanced open (OWE) networks. Those cannot be configured
+     * before Android Q.
+     *
+     * @return WifiConfiguration
+     */
+    private WifiConfiguration oweNetworkConf(ConnectRequest request) {
+
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) {
+            throw new RuntimeException(EC.UNSUPPORTED_SECURITY.toString());
+        }
+
+        WifiConfiguration conf = new WifiConfiguration();
+        conf.SSID = inDoubleQuotes(request.ssid);
+        conf.status = WifiConfiguration.Status.ENABLED;
+
+        conf.allowedProtocols.set(WifiConfiguration.Protocol.RSN);
+        conf.allowedKeyManagement.set(WifiConfiguration.KeyMgmt.OWE);
+        conf.allowedPairwiseCiphers.set(WifiConfiguration.PairwiseCipher.CCMP);
+        conf.allowedGroupCiphers.set(WifiConfiguration.GroupCipher.CCMP);
+        conf.requirePMF = true;
+
+        return conf;
+
+    }
+
+    /**
+     * For WPA/WPA2 enterprise networks, using PEAP with MSCHAPv2 which
+     * is what an identity and password are enough for.
+     *
+     * @return WifiConfiguration
+     */
+    private WifiConfiguration eapNetworkConf(ConnectRequest request) {
+
+        if (request.identity == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            throw new RuntimeException(EC.UNSUPPORTED_SECURITY.toString());
+        }
+
+        WifiConfiguration conf = new WifiConfiguration();
+        conf.SSID = inDoubleQuotes(request.ssid);
+        conf.status = WifiConfiguration.Status.ENABLED;
+
+        conf.allowedProtocols.set(WifiConfiguration.Protocol.RSN);
+        conf.allowedProtocols.set(WifiConfiguration.Protocol.WPA);
+        conf.allowedKeyManagement.set(WifiConfiguration.KeyMgmt.WPA_EAP);
+        conf.allowedKeyManagement.set(WifiConfiguration.KeyMgmt.IEEE8021X);
+
+        WifiEnterpriseConfig enterprise = new WifiEnterpriseConfig();
+        enterprise.setIdentity(request.identity);
+        enterprise.setPassword(request.password);
+        enterprise.setEapMethod(WifiEnterpriseConfig.Eap.PEAP);
+        enterprise.setPhase2Method(WifiEnterpriseConfig.Phase2.MSCHAPV2);
+        conf.enterpriseConfig = enterprise;
+
+        return conf;
+
+    }
+
+    /**
+     * For networks using no security protocols.
+     *
+     * @return WifiConfiguration
+     */
+    private WifiConfiguration openNetworkConf(ConnectRequest request) {
+
+        WifiConfiguration conf = new WifiConfiguration();
+        conf.SSID = inDoubleQuotes(request.ssid);
+        conf.status = WifiConfiguration.Status.ENABLED;
+
+        conf.allowedKeyManagement.set(WifiConfiguration.KeyMgmt.NONE);
+        conf.allowedProtocols.set(WifiConfiguration.Protocol.RSN);
+        conf.allowedProtocols.set(WifiConfiguration.Protocol.WPA);
+        conf.allowedAuthAlgorithms.clear();
+        conf.allowedPairwiseCiphers.set(WifiConfiguration.PairwiseCipher.CCMP);
+        conf.allowedPairwiseCiphers.set(WifiConfiguration.PairwiseCipher.TKIP);
+        conf.allowedGroupCiphers.set(WifiConfiguration.GroupCipher.WEP40);
+        conf.allowedGroupCiphers.set(WifiConfiguration.GroupCipher.WEP104);
+        conf.allowedGroupCiphers.set(WifiConfiguration.GroupCipher.CCMP);
+        conf.allowedGroupCiphers.set(WifiConfiguration.GroupCipher.TKIP);
+
+        return conf;
+
+    }
+
+    // Helpers
+
+    private String inDoubleQuotes(String s) {
+        return "\"" + s + "\"";
+    }
+
+    private WifiManager manager() {
+        if (this.manager == null) {
+            throw new RuntimeException(EC.WIFI_MANAGER_ERROR.toString());
+        }
+        return this.manager;
+    }
+
+    private static int frequency(WifiInfo info) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return 0;
+        }
+        return info.getFrequency();
+    }
+
+    private static int security(WifiConfiguration configuration) {
+        if (configuration.allowedKeyManagement.get(WifiConfiguration.KeyMgmt.WPA_PSK)
+                || configuration.allowedKeyManagement.get(WifiConfiguration.KeyMgmt.SAE)) {
+            return ConfiguredNetworks.SECURITY_PSK;
+        }
+        if (configuration.allowedKeyManagement.get(WifiConfiguration.KeyMgmt.WPA_EAP)
+                || configuration.allowedKeyManagement.get(WifiConfiguration.KeyMgmt.IEEE8021X)) {
+            return ConfiguredNetworks.SECURITY_EAP;
+        }
+        if (configuration.wepKeys != null && configuration.wepKeys[0] != null) {
+            return ConfiguredNetworks.SECURITY_WEP;
+        }
+        return ConfiguredNetworks.SECURITY_OPEN;
+    }
+
+}
@@ -0,0 +1,203 @@
+package com.zone24x7.wifi_settings;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.NetworkInfo;
+import android.net.wifi.SupplicantState;
+import android.net.wifi.WifiInfo;
+import android.net.wifi.WifiManager;
+import android.os.SystemClock;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Waits until the device is really associated with a network and has
+ * an IP address, instead of trusting {@link WifiManager#reconnect()}.
+ * Without an IPv4 address the link counts as up once the network state
+ * broadcast reports it connected, which covers IPv6 only networks.
+ * <p>
+ * The receiver only records what the broadcasts say and wakes up the
+ * waiting worker thread, which then reads {@link WifiManager#getConnectionInfo()}
+ * itself. That keeps the binder calls off the main thread.
+ * Must be started before the connect attempt so no broadcast is missed.
+ */
+class AssociationWatcher implements WifiBackend.Association {
+
+    private final Context context;
+    private final WifiManager manager;
+    private final Metrics metrics;
+    private final String quotedSsid;
+
+    private final Object lock = new Object();
+    private boolean authenticationFailed = false;
+    // Whether the latest network state broadcast reported the link up.
+    private boolean linkConnected = false;
+    private int events = 0;
+
+    private long startedAt;
+    private long associatedAt = -1;
+    private long connectedAt = -1;
+    private boolean ipv4 = false;
+
+    private final BroadcastReceiver receiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            synchronized (lock) {
+                if (WifiManager.SUPPLICANT_STATE_CHANGED_ACTION.equals(intent.getAction())
+                        && intent.getIntExtra(WifiManager.EXTRA_SUPPLICANT_ERROR, 0) == WifiManager.ERROR_AUTHENTICATING) {
+                    authenticationFailed = true;
+                }
+                // The sticky broadcast describes the network we may be
+                // leaving, only the ones that follow count.
+                if (WifiManager.NETWORK_STATE_CHANGED_ACTION.equals(intent.getAction()) && !isInitialStickyBroadcast()) {
+                    NetworkInfo info = intent.getParcelableExtra(WifiManager.EXTRA_NETWORK_INFO);
+                    linkConnected = info != null && info.isConnected();
+                }
+                events++;
+                lock.notifyAll();
+            }
+        }
+    };
+
+    AssociationWatcher(Context context, WifiManager manager, Metrics metrics, String ssid) {
+        this.context = context;
+        this.manager = manager;
+        this.metrics = metrics;
+        this.quotedSsid = "\"" + ssid + "\"";
+    }
+
+    void start() {
+        startedAt = SystemClock.elapsedRealtime();
+        IntentFilter filter = new IntentFilter(WifiManager.NETWORK_STATE_CHANGED_ACTION);
+        filter.addAction(WifiManager.SUPPLICANT_STATE_CHANGED_ACTION);
+        context.registerReceiver(receiver, filter);
+    }
+
+    /**
+     * Blocks the calling (worker) thread until the target network is
+     * connected with an IP, authentication fails or the timeout expires.
+     *
+     * @param timeoutMillis upper bound measured from {@link #start()}
+     * @return {connected, timeToAssociateMillis, timeToIpMillis}, the
+     * latter only with an IPv4 address
+     * @throws RuntimeException with {@link EC#AUTHENTICATION_FAILED} or
+     *                          {@link EC#ASSOCIATION_TIMEOUT}
+     */
+    @Override
+    public Map<String, Object> await(long timeoutMillis) throws RuntimeException {
+
+        try {
+
+            long deadline = startedAt + timeoutMillis;
+            int seen = -1;
+
+            while (true) {
+
+                boolean failed;
+                synchronized (lock) {
+                    long remaining = deadline - SystemClock.elapsedRealtime();
+                    if (!authenticationFailed && seen == events && remaining > 0) {
+                        lock.wait(remaining);
+                    }
+                    seen = events;
+                    failed = authenticationFailed;
+                    authenticationFailed = false;
+                }
+
+                if (failed && targeted()) {
+                    Trace.event(Trace.AUTHENTICATION_FAILED, quotedSsid);
+                    throw new RuntimeException(EC.AUTHENTICATION_FAILED.toString());
+                }
+
+                if (check()) {
+                    return result();
+                }
+
+                if (SystemClock.elapsedRealtime() >= deadline) {
+                    Trace.event(Trace.ASSOCIATION_TIMEOUT, quotedSsid, timeoutMillis);
+                    throw new RuntimeException(EC.ASSOCIATION_TIMEOUT.toString());
+                }
+
+            }
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(EC.ASSOCIATION_TIMEOUT.toString());
+        } finally {
+            stop();
+        }
+
+    }
+
+    @Override
+    public void stop() {
+        try {
+            context.unregisterReceiver(receiver);
+        } catch (IllegalArgumentException e) {
+            // Already unregistered.
+        }
+    }
+
+    // Helpers
+
+    /**
+     * The supplicant error carries no SSID, so an authentication failure
+     * only counts while the supplicant is still working on our network,
+     * not on the one it was leaving or another app's.
+     */
+    private boolean targeted() {
+        WifiInfo info = manager.getConnectionInfo();
+        return info != null && quotedSsid.equals(info.getSSID());
+    }
+
+    private boolean check() {
+
+        WifiInfo info = manager.getConnectionInfo();
+        if (info == null || !quotedSsid.equals(info.getSSID())) {
+            return false;
+        }
+
+        long now = SystemClock.elapsedRealtime();
+        SupplicantState state = info.getSupplicantState();
+        if (associatedAt < 0 && (state == SupplicantState.ASSOCIATED
+                || state == SupplicantState.FOUR_WAY_HANDSHAKE
+                || state == SupplicantState.GROUP_HANDSHAKE
+                || state == SupplicantState.COMPLETED)) {
+            associatedAt = now;
+        }
+
+        boolean hasIpv4 = info.getIpAddress() != 0;
+        boolean up;
+        synchronized (lock) {
+            up = linkConnected;
+        }
+        if (state == SupplicantState.COMPLETED && (hasIpv4 || up)) {
+            if (associatedAt < 0) {
+                associatedAt = now;
+            }
+            connectedAt = now;
+            ipv4 = hasIpv4;
+            return true;
+        }
+
+        return false;
+
+    }
+
+    private Map<String, Object> result() {
+        metrics.recordMicros(Metrics.Phase.ASSOCIATE, (associatedAt - startedAt) * 1000);
+        Map<String, Object> m = new HashMap<>();
+        m.put("connected", true);
+        m.put("timeToAssociateMillis", associatedAt - startedAt);
+        if (ipv4) {
+            // Without IPv4 there is no DHCP to time.
+            metrics.recordMicros(Metrics.Phase.DHCP, (connectedAt - associatedAt) * 1000);
+            m.put("timeToIpMillis", connectedAt - startedAt);
+        }
+        return m;
+    }
+
+}
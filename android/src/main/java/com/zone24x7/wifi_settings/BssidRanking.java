@@ -0,0 +1,106 @@
+package com.zone24x7.wifi_settings;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Ranks the access points of every SSID in a scan, for networks that
+ * are served by several (mesh, multi-AP) BSSIDs.
+ * <p>
+ * The score is the signal level in dBm, plus a bonus for the 5 and
+ * 6 GHz bands and minus a penalty for every other access point heard on
+ * the same channel. Only the best {@link #TOP} per SSID are kept: after
+ * a pass counting the access points per channel, each scan result is
+ * inserted into its SSID's short list as it comes, so ranking is linear
+ * in the size of the scan and nothing is sorted.
+ */
+final class BssidRanking {
+
+    static final int TOP = 4;
+
+    private static final int BONUS_5GHZ = 5;
+    private static final int BONUS_6GHZ = 8;
+    private static final int PENALTY_PER_NEIGHBOUR = 2;
+    private static final int MAX_PENALTY = 20;
+
+    private static class Builder {
+
+        final AccessPoint[] aps = new AccessPoint[TOP];
+        final int[] scores = new int[TOP];
+        int size;
+
+        void offer(AccessPoint ap, int score) {
+            if (size == TOP && score <= scores[TOP - 1]) {
+                return;
+            }
+            int i = size < TOP ? size++ : TOP - 1;
+            // Shift the weaker ones down, ties keep the scan order.
+            while (i > 0 && scores[i - 1] < score) {
+                aps[i] = aps[i - 1];
+                scores[i] = scores[i - 1];
+                i--;
+            }
+            aps[i] = ap;
+            scores[i] = score;
+        }
+
+        AccessPoint[] build() {
+            AccessPoint[] top = new AccessPoint[size];
+            System.arraycopy(aps, 0, top, 0, size);
+            return top;
+        }
+
+    }
+
+    private BssidRanking() {
+    }
+
+    /**
+     * @return plain SSID -> its best access points, best first
+     */
+    static Map<String, AccessPoint[]> rank(List<AccessPoint> scan) {
+
+        Map<Integer, Integer> channels = new HashMap<>();
+        for (AccessPoint ap : scan) {
+            Integer n = channels.get(ap.frequency);
+            channels.put(ap.frequency, n == null ? 1 : n + 1);
+        }
+
+        Map<String, Builder> builders = new HashMap<>(scan.size() * 2);
+        for (AccessPoint ap : scan) {
+            if (ap.ssid == null || ap.ssid.isEmpty()) {
+                continue;
+            }
+            Builder builder = builders.get(ap.ssid);
+            if (builder == null) {
+                builder = new Builder();
+                builders.put(ap.ssid, builder);
+            }
+            builder.offer(ap, score(ap, channels.get(ap.frequency) - 1));
+        }
+
+        Map<String, AccessPoint[]> ranked = new HashMap<>(builders.size() * 2);
+        for (Map.Entry<String, Builder> e : builders.entrySet()) {
+            ranked.put(e.getKey(), e.getValue().build());
+        }
+        return ranked;
+
+    }
+
+    /**
+     * @param ap         the access point
+     * @param neighbours other access points on the same channel
+     * @return higher is better, roughly in dB
+     */
+    static int score(AccessPoint ap, int neighbours) {
+        int score = ap.level;
+        if (ap.frequency >= 5925) {
+            score += BONUS_6GHZ;
+        } else if (ap.frequency >= 4900) {
+            score += BONUS_5GHZ;
+        }
+        return score - Math.min(MAX_PENALTY, neighbours * PENALTY_PER_NEIGHBOUR);
+    }
+
+}
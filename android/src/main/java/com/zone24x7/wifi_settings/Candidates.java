@@ -0,0 +1,90 @@
+package com.zone24x7.wifi_settings;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Ranks a prioritized list of known networks against the current scan
+ * snapshot, for connectToBest. Networks that are not in the scan but
+ * already configured, such as hidden ones, stay in the list after the
+ * visible ones.
+ */
+final class Candidates {
+
+    static class Candidate {
+
+        final String ssid;
+        final String password;
+        final int priority;
+        final boolean visible;
+        // Only meaningful when visible.
+        final int level;
+
+        Candidate(String ssid, String password, int priority, boolean visible, int level) {
+            this.ssid = ssid;
+            this.password = password;
+            this.priority = priority;
+            this.visible = visible;
+            this.level = level;
+        }
+
+    }
+
+    private static final Comparator<Candidate> BY_PRIORITY_THEN_LEVEL = new Comparator<Candidate>() {
+        @Override
+        public int compare(Candidate a, Candidate b) {
+            if (a.visible != b.visible) {
+                return a.visible ? -1 : 1;
+            }
+            if (a.priority != b.priority) {
+                return a.priority > b.priority ? -1 : 1;
+            }
+            return a.level == b.level ? 0 : (a.level > b.level ? -1 : 1);
+        }
+    };
+
+    private Candidates() {
+    }
+
+    /**
+     * Orders the candidates visible in the latest scan by priority
+     * (highest first), then by signal level, followed by the configured
+     * ones that are not visible, by priority. Candidates that are neither
+     * are dropped.
+     *
+     * @param raw        list of {ssid, password, priority} from the channel
+     * @param index      {@link NetworkIndex}
+     * @param configured {@link ConfiguredNetworks}
+     * @return candidates worth attempting, best first
+     */
+    static List<Candidate> rank(List<Map<String, Object>> raw, NetworkIndex index, ConfiguredNetworks configured) {
+
+        List<Candidate> ranked = new ArrayList<>();
+        if (raw == null) {
+            return ranked;
+        }
+
+        for (Map<String, Object> m : raw) {
+            String ssid = (String) m.get("ssid");
+            if (ssid == null || ssid.isEmpty()) {
+                continue;
+            }
+            AccessPoint ap = index.scanResult(ssid);
+            if (ap == null && configured.get(ssid) == null) {
+                continue;
+            }
+            Object priority = m.get("priority");
+            ranked.add(new Candidate(ssid, (String) m.get("password"),
+                    priority instanceof Number ? ((Number) priority).intValue() : 0,
+                    ap != null, ap != null ? ap.level : 0));
+        }
+
+        Collections.sort(ranked, BY_PRIORITY_THEN_LEVEL);
+        return ranked;
+
+    }
+
+}
@@ -0,0 +1,147 @@
+package com.zone24x7.wifi_settings;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Turns the {@link AccessPoint#capabilities} string, for example
+ * "[WPA2-PSK-CCMP][RSN-PSK+SAE-CCMP][ESS][MFPC]", into an int bitmask
+ * in a single pass without allocating.
+ * <p>
+ * Masks are cached per BSSID and reused for as long as the access point
+ * keeps advertising the same capabilities.
+ */
+final class Capabilities {
+
+    static final int WEP = 1;
+    static final int WPA = 1 << 1;
+    static final int WPA2 = 1 << 2;
+    static final int PSK = 1 << 3;
+    static final int SAE = 1 << 4;
+    static final int OWE = 1 << 5;
+    static final int EAP = 1 << 6;
+    static final int PMF_CAPABLE = 1 << 7;
+    static final int PMF_REQUIRED = 1 << 8;
+    static final int CCMP = 1 << 9;
+    static final int TKIP = 1 << 10;
+    static final int GCMP = 1 << 11;
+    static final int FT = 1 << 12;
+
+    // Tokens of a capabilities group and the bits they set.
+    private static final String[] TOKENS = {
+            "WEP", "WPA", "WPA2", "RSN", "WPA3",
+            "PSK", "SAE", "OWE", "EAP", "FT",
+            // [RSN-SUITE-B-192-...] is always enterprise.
+            "SUITE",
+            "CCMP", "TKIP", "GCMP",
+            "MFPC", "MFPR",
+    };
+
+    private static final int[] BITS = {
+            WEP, WPA, WPA2, WPA2, WPA2 | SAE,
+            PSK, SAE, OWE, EAP, FT,
+            EAP,
+            CCMP, TKIP, GCMP,
+            PMF_CAPABLE, PMF_REQUIRED | PMF_CAPABLE,
+    };
+
+    private static final int MAX_CACHED = 4096;
+
+    private static final ConcurrentHashMap<String, Cached> cache = new ConcurrentHashMap<>();
+
+    private static class Cached {
+
+        final String capabilities;
+        final int mask;
+
+        Cached(String capabilities, int mask) {
+            this.capabilities = capabilities;
+            this.mask = mask;
+        }
+
+    }
+
+    private Capabilities() {
+    }
+
+    /**
+     * @return the capability mask of the access point, cached per BSSID
+     */
+    static int of(AccessPoint ap) {
+
+        if (ap.bssid == null) {
+            return parse(ap.capabilities);
+        }
+
+        Cached cached = cache.get(ap.bssid);
+        if (cached != null && (cached.capabilities == ap.capabilities
+                || (cached.capabilities != null && cached.capabilities.equals(ap.capabilities)))) {
+            return cached.mask;
+        }
+
+        int mask = parse(ap.capabilities);
+        if (cache.size() >= MAX_CACHED) {
+            cache.clear();
+        }
+        cache.put(ap.bssid, new Cached(ap.capabilities, mask));
+        return mask;
+
+    }
+
+    /**
+     * Parses a capabilities string. Every bracketed group is split into
+     * tokens on '-', '+' and '/', and every token that names a protocol,
+     * key management or cipher sets its bit.
+     *
+     * @param capabilities {@link AccessPoint#capabilities}
+     * @return capability bitmask, 0 for an open network
+     */
+    static int parse(String capabilities) {
+
+        if (capabilities == null) {
+            return 0;
+        }
+
+        int mask = 0;
+        int start = -1;
+        int n = capabilities.length();
+
+        for (int i = 0; i <= n; i++) {
+            char c = i < n ? capabilities.charAt(i) : ']';
+            boolean separator = c == '[' || c == ']' || c == '-' || c == '+' || c == '/';
+            if (!separator) {
+                if (start < 0) {
+                    start = i;
+                }
+                continue;
+            }
+            if (start >= 0) {
+                mask |= token(capabilities, start, i - start);
+                start = -1;
+            }
+        }
+
+        return mask;
+
+    }
+
+    /**
+     * @return true if the mask has a key management the legacy
+     * WifiConfiguration paths cannot build a profile for
+     */
+    static boolean needsModernConfig(int mask) {
+        return (mask & (SAE | OWE)) != 0 && (mask & PSK) == 0;
+    }
+
+    // Helpers
+
+    private static int token(String s, int offset, int length) {
+        for (int t = 0; t < TOKENS.length; t++) {
+            String token = TOKENS[t];
+            if (token.length() == length && s.regionMatches(true, offset, token, 0, length)) {
+                return BITS[t];
+            }
+        }
+        return 0;
+    }
+
+}
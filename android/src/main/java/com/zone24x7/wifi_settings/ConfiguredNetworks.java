@@ -0,0 +1,186 @@
+package com.zone24x7.wifi_settings;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Plugin wide cache of the configured networks table. Reading the saved
+ * profiles copies every one of them over binder, so the table is kept as
+ * a small SSID keyed map of {@link Entry} and only reloaded after the
+ * backend reports a change or after the plugin adds or removes a network
+ * itself. The change broadcast is not reliably delivered to third party
+ * apps, so the table is also reloaded once it is older than
+ * {@link #MAX_AGE_MILLIS}, which picks up profiles edited in Settings.
+ */
+class ConfiguredNetworks {
+
+    static final int SECURITY_OPEN = 0;
+    static final int SECURITY_WEP = 1;
+    static final int SECURITY_PSK = 2;
+    static final int SECURITY_EAP = 3;
+
+    static final long MAX_AGE_MILLIS = 5000;
+
+    static class Entry {
+
+        final String ssid;
+        final int networkId;
+        final int security;
+        // Further profiles saved for the same SSID, usually left over
+        // from repeated addNetwork calls.
+        final int[] duplicates;
+
+        Entry(String ssid, int networkId, int security, int[] duplicates) {
+            this.ssid = ssid;
+            this.networkId = networkId;
+            this.security = security;
+            this.duplicates = duplicates;
+        }
+
+    }
+
+    private final WifiBackend backend;
+
+    private volatile boolean stale = true;
+    private volatile long loadedAtNanos;
+    private volatile Map<String, Entry> entries = Collections.emptyMap();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    private final WifiBackend.ConfigurationListener listener = new WifiBackend.ConfigurationListener() {
+        @Override
+        public void configuredNetworksChanged() {
+            invalidate();
+        }
+    };
+
+    ConfiguredNetworks(WifiBackend backend) {
+        this.backend = backend;
+        backend.addConfigurationListener(listener);
+    }
+
+    /**
+     * @param ssid plain (unquoted) SSID
+     * @return the configured network or null
+     */
+    Entry get(String ssid) {
+        return entries().get(ssid);
+    }
+
+    /**
+     * @return one entry per configured SSID
+     */
+    Collection<Entry> all() {
+        return entries().values();
+    }
+
+    void invalidate() {
+        invalidations.incrementAndGet();
+        stale = true;
+    }
+
+    void dispose() {
+        backend.removeConfigurationListener(listener);
+    }
+
+    /**
+     * @return {hits, misses, invalidations, size}
+     */
+    Map<String, Long> stats() {
+        Map<String, Long> m = new HashMap<>();
+        m.put("hits", hits.get());
+        m.put("misses", misses.get());
+        m.put("invalidations", invalidations.get());
+        m.put("size", (long) entries.size());
+        return m;
+    }
+
+    // Helpers
+
+    private Map<String, Entry> entries() {
+
+        if (isFresh()) {
+            hits.incrementAndGet();
+            return entries;
+        }
+
+        synchronized (this) {
+            if (isFresh()) {
+                hits.incrementAndGet();
+                return entries;
+            }
+            misses.incrementAndGet();
+            // Cleared before reading, so a broadcast that arrives
+            // while loading marks the new table stale again.
+            stale = false;
+            loadedAtNanos = System.nanoTime();
+            List<SavedNetwork> list = backend.configuredNetworks();
+            Map<String, List<SavedNetwork>> grouped = new HashMap<>(list.size() * 2);
+            for (SavedNetwork saved : list) {
+                String ssid = unquoted(saved.ssid);
+                if (ssid == null || ssid == saved.ssid) {
+                    continue;
+                }
+                List<SavedNetwork> group = grouped.get(ssid);
+                if (group == null) {
+                    group = new ArrayList<>(1);
+                    grouped.put(ssid, group);
+                }
+                group.add(saved);
+            }
+            Map<String, Entry> table = new HashMap<>(grouped.size() * 2);
+            for (Map.Entry<String, List<SavedNetwork>> group : grouped.entrySet()) {
+                List<SavedNetwork> saved = group.getValue();
+                SavedNetwork first = saved.get(0);
+                int[] duplicates = new int[saved.size() - 1];
+                for (int i = 0; i < duplicates.length; i++) {
+                    duplicates[i] = saved.get(i + 1).networkId;
+                }
+                table.put(group.getKey(), new Entry(group.getKey(), first.networkId, first.security, duplicates));
+            }
+            entries = table;
+            return entries;
+        }
+
+    }
+
+    private boolean isFresh() {
+        return !stale && System.nanoTime() - loadedAtNanos < MAX_AGE_MILLIS * 1000000;
+    }
+
+    /**
+     * Maps a {@link Capabilities} mask onto the same coarse security
+     * classes the configured networks are sorted into.
+     */
+    static int security(int mask) {
+        if ((mask & Capabilities.EAP) != 0 && (mask & Capabilities.PSK) == 0) {
+            return SECURITY_EAP;
+        }
+        if ((mask & (Capabilities.PSK | Capabilities.SAE | Capabilities.WPA | Capabilities.WPA2)) != 0) {
+            return SECURITY_PSK;
+        }
+        if ((mask & Capabilities.WEP) != 0) {
+            return SECURITY_WEP;
+        }
+        return SECURITY_OPEN;
+    }
+
+    /**
+     * Strips the double quotes of a configured SSID. Hex encoded SSIDs
+     * are returned unchanged.
+     */
+    static String unquoted(String ssid) {
+        if (ssid != null && ssid.length() >= 2 && ssid.startsWith("\"") && ssid.endsWith("\"")) {
+            return ssid.substring(1, ssid.length() - 1);
+        }
+        return ssid;
+    }
+
+}
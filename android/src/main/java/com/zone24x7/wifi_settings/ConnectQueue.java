@@ -0,0 +1,131 @@
+package com.zone24x7.wifi_settings;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import io.flutter.plugin.common.MethodChannel.Result;
+
+/**
+ * Runs connect calls one at a time. While one is running at most one
+ * more is kept pending: a newer call replaces the pending one, which
+ * fails with {@link EC#SUPERSEDED}, unless both have the same arguments,
+ * in which case they share the reply. They run on the dispatcher's
+ * connect thread, so waiting for an IP or a retry backoff never takes
+ * a worker away from other calls.
+ */
+class ConnectQueue {
+
+    private final MethodDispatcher dispatcher;
+
+    // Guarded by this.
+    private boolean running = false;
+    private Pending pending;
+
+    private long superseded;
+    private long joined;
+
+    private static class Pending {
+
+        final String method;
+        final String key;
+        final FanOutResult result;
+        final MethodDispatcher.Task task;
+
+        Pending(String method, String key, FanOutResult result, MethodDispatcher.Task task) {
+            this.method = method;
+            this.key = key;
+            this.result = result;
+            this.task = task;
+        }
+
+    }
+
+    ConnectQueue(MethodDispatcher dispatcher) {
+        this.dispatcher = dispatcher;
+    }
+
+    /**
+     * @param method    name of the channel method
+     * @param arguments arguments of the call, compared to the pending one
+     * @param result    {@link Result} of the call
+     * @param task      the connect work
+     */
+    void submit(String method, Object arguments, Result result, MethodDispatcher.Task task) {
+
+        String key = SingleFlight.key(method, arguments);
+        Pending replaced = null;
+
+        synchronized (this) {
+            if (!running) {
+                running = true;
+            } else if (pending != null && pending.key.equals(key) && pending.result.add(result)) {
+                joined++;
+                return;
+            } else {
+                replaced = pending;
+                if (replaced != null) {
+                    superseded++;
+                }
+                pending = new Pending(method, key, new FanOutResult(result), task);
+                task = null;
+            }
+        }
+
+        if (replaced != null) {
+            Trace.event(Trace.CONNECT_SUPERSEDED, replaced.method);
+            replaced.result.error(EC.SUPERSEDED.toString(), null, null);
+        }
+
+        if (task != null) {
+            run(method, result, task);
+        }
+
+    }
+
+    /**
+     * @return {superseded, joined}
+     */
+    synchronized Map<String, Long> stats() {
+        Map<String, Long> m = new HashMap<>();
+        m.put("superseded", superseded);
+        m.put("joined", joined);
+        return m;
+    }
+
+    // Helpers
+
+    private void run(String method, Result result, final MethodDispatcher.Task task) {
+
+        boolean queued = dispatcher.dispatchConnect(method, result, new MethodDispatcher.Task() {
+            @Override
+            public void run(Result result) {
+                try {
+                    task.run(result);
+                } finally {
+                    next();
+                }
+            }
+        });
+
+        if (!queued) {
+            next();
+        }
+
+    }
+
+    private void next() {
+
+        Pending next;
+        synchronized (this) {
+            next = pending;
+            pending = null;
+            running = next != null;
+        }
+
+        if (next != null) {
+            run(next.method, next.result, next.task);
+        }
+
+    }
+
+}
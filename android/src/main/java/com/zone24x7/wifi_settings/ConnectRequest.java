@@ -0,0 +1,76 @@
+package com.zone24x7.wifi_settings;
+
+/**
+ * What a single connect call asks for. Immutable, so the
+ * {@link ConnectionBackend} instances that take it can be shared
+ * between calls and threads.
+ */
+final class ConnectRequest {
+
+    final String ssid;
+    final String password;
+    // Only used by enterprise (EAP) networks.
+    final String identity;
+    // Lock onto the best BSSID of the SSID instead of letting the
+    // supplicant choose, see BssidRanking.
+    final boolean pinBssid;
+    // Ignore a saved profile of the SSID and write a new one from this
+    // request, see RetryPolicy.
+    final boolean freshProfile;
+    // Specifier only: the network is not expected to reach the internet.
+    final boolean localOnly;
+    // Specifier only: route all of the app's traffic over the network.
+    final boolean bindProcess;
+
+    private ConnectRequest(String ssid, String password, String identity, boolean pinBssid, boolean freshProfile,
+                           boolean localOnly, boolean bindProcess) {
+        this.ssid = ssid;
+        this.password = password;
+        this.identity = identity;
+        this.pinBssid = pinBssid;
+        this.freshProfile = freshProfile;
+        this.localOnly = localOnly;
+        this.bindProcess = bindProcess;
+    }
+
+    /**
+     * @param ssid     plain SSID, required
+     * @param password null for open networks
+     * @param identity identity for enterprise networks, may be null
+     * @throws Exception {@link EC#SSID_IS_NULL_OR_EMPTY}
+     */
+    static ConnectRequest of(String ssid, String password, String identity) throws Exception {
+        return of(ssid, password, identity, false);
+    }
+
+    /**
+     * @param pinBssid connect to the best access point of the SSID only
+     * @throws Exception {@link EC#SSID_IS_NULL_OR_EMPTY}
+     */
+    static ConnectRequest of(String ssid, String password, String identity, boolean pinBssid) throws Exception {
+        if (ssid == null || ssid.equals("")) {
+            throw new Exception(EC.SSID_IS_NULL_OR_EMPTY.toString());
+        }
+        return new ConnectRequest(ssid, password == null ? "" : password, identity, pinBssid, false, false, false);
+    }
+
+    /**
+     * @return the same request, connecting with a freshly built profile
+     */
+    ConnectRequest withFreshProfile() {
+        return freshProfile ? this
+                : new ConnectRequest(ssid, password, identity, pinBssid, true, localOnly, bindProcess);
+    }
+
+    /**
+     * Options of {@link SpecifierBackend}, the legacy backend ignores them.
+     *
+     * @param localOnly   do not ask for a network with internet access
+     * @param bindProcess bind the process to the network once it is up
+     * @return the same request with the options
+     */
+    ConnectRequest withSpecifierOptions(boolean localOnly, boolean bindProcess) {
+        return new ConnectRequest(ssid, password, identity, pinBssid, freshProfile, localOnly, bindProcess);
+    }
+
+}
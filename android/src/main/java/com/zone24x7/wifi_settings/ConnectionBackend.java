@@ -0,0 +1,68 @@
+package com.zone24x7.wifi_settings;
+
+import java.util.Map;
+
+/**
+ * One way of getting the device onto a network. {@link WiFiConnector}
+ * is the legacy WifiConfiguration based path, {@link SpecifierBackend}
+ * uses WifiNetworkSpecifier on Android Q and later. Backends keep no
+ * per call state, everything about the call is in the
+ * {@link ConnectRequest}, so one instance serves every call.
+ */
+interface ConnectionBackend {
+
+    String LEGACY = "legacy";
+    String SPECIFIER = "specifier";
+
+    /**
+     * Starts connecting and returns as soon as the system accepted the
+     * request.
+     *
+     * @throws RuntimeException carrying the {@link EC} code of the failure
+     */
+    void attempt(ConnectRequest request) throws RuntimeException;
+
+    /**
+     * Same as {@link #attempt(ConnectRequest)} but swallows the failure.
+     *
+     * @return true if the attempt was accepted
+     */
+    boolean connect(ConnectRequest request);
+
+    /**
+     * Connects and only returns once the network is connected and has
+     * an IP address.
+     *
+     * @param timeoutMillis upper bound for the whole attempt
+     * @return {connected, backend, timeToAssociateMillis, timeToIpMillis},
+     * the latter only with an IPv4 address
+     * @throws RuntimeException carrying the {@link EC} code of the failure
+     */
+    Map<String, Object> attemptAndAwait(ConnectRequest request, long timeoutMillis) throws RuntimeException;
+
+    /**
+     * Does everything {@link #attempt(ConnectRequest)} does short of
+     * switching networks, so that {@link #activate(StagedNetwork)} can
+     * switch with as few system calls as possible.
+     *
+     * @throws RuntimeException carrying the {@link EC} code of the failure
+     */
+    StagedNetwork stage(ConnectRequest request) throws RuntimeException;
+
+    /**
+     * Switches to a network staged by this backend. If what was staged is
+     * gone by now (the profile was removed, say) it is staged again.
+     *
+     * @throws RuntimeException carrying the {@link EC} code of the failure
+     */
+    void activate(StagedNetwork staged) throws RuntimeException;
+
+    /**
+     * Same as {@link #activate(StagedNetwork)}, waiting like
+     * {@link #attemptAndAwait(ConnectRequest, long)}.
+     *
+     * @throws RuntimeException carrying the {@link EC} code of the failure
+     */
+    Map<String, Object> activateAndAwait(StagedNetwork staged, long timeoutMillis) throws RuntimeException;
+
+}
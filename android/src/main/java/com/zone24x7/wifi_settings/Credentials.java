@@ -0,0 +1,92 @@
+package com.zone24x7.wifi_settings;
+
+/**
+ * Checks the credentials of a {@link ConnectRequest} against the security
+ * of the network before anything is saved or requested, so that a typo
+ * fails fast with {@link EC#INVALID_CREDENTIALS} instead of as an
+ * authentication timeout, or as an exception from the framework.
+ */
+final class Credentials {
+
+    private Credentials() {
+    }
+
+    /**
+     * @param security {@link Profile} security of the network
+     * @param request  the connect request
+     * @param rawKeys  whether a WPA key may also be given as 64 hex
+     *                 digits, which only saved profiles can take
+     * @throws RuntimeException {@link EC#INVALID_CREDENTIALS}
+     */
+    static void check(int security, ConnectRequest request, boolean rawKeys) throws RuntimeException {
+
+        String password = request.password;
+        boolean valid;
+
+        switch (security) {
+            case Profile.WEP:
+                valid = isWepKey(password);
+                break;
+            case Profile.PSK:
+                valid = isPassphrase(password) || (rawKeys && isHex(password, 64));
+                break;
+            case Profile.SAE:
+                // SAE has no raw key form.
+                valid = isPassphrase(password);
+                break;
+            case Profile.EAP:
+                valid = request.identity != null && !request.identity.isEmpty();
+                break;
+            default:
+                valid = true;
+        }
+
+        if (!valid) {
+            Trace.event(Trace.CONNECT_FAILED, EC.INVALID_CREDENTIALS.toString(), security);
+            throw new RuntimeException(EC.INVALID_CREDENTIALS.toString());
+        }
+
+    }
+
+    /**
+     * @return true for a WEP key in hex, 10 or 26 digits, which is saved
+     * without quotes
+     */
+    static boolean isHexWepKey(String key) {
+        return isHex(key, 10) || isHex(key, 26);
+    }
+
+    // Helpers
+
+    private static boolean isWepKey(String key) {
+        return isHexWepKey(key) || ((key.length() == 5 || key.length() == 13) && isAscii(key));
+    }
+
+    private static boolean isPassphrase(String passphrase) {
+        return passphrase.length() >= 8 && passphrase.length() <= 63 && isAscii(passphrase);
+    }
+
+    private static boolean isAscii(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x20 || c > 0x7e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isHex(String s, int length) {
+        if (s.length() != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (!(c >= '0' && c <= '9') && !(c >= 'a' && c <= 'f') && !(c >= 'A' && c <= 'F')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
@@ -11,6 +11,16 @@ public enum EC {
     RECONNECTION_FAILED,
     FAILED_TO_ENABLE_NETWORK,
     WIFI_MANAGER_ERROR,
-    NETWORK_NOT_VISIBLE
-    
+    NETWORK_NOT_VISIBLE,
+    ASSOCIATION_TIMEOUT,
+    AUTHENTICATION_FAILED,
+    UNSUPPORTED_SECURITY,
+    INVALID_CREDENTIALS,
+
+    DISPATCH_REJECTED,
+    SUPERSEDED,
+    INVALID_QUERY,
+    INVALID_RETRY_POLICY,
+    NETWORK_NOT_STAGED
+
 }
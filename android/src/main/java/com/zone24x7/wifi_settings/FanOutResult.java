@@ -0,0 +1,73 @@
+package com.zone24x7.wifi_settings;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import io.flutter.plugin.common.MethodChannel.Result;
+
+/**
+ * Answers every {@link Result} added to it with the outcome of a single
+ * computation. Results can be added until the first reply, after that
+ * {@link #add(Result)} refuses them.
+ */
+class FanOutResult implements Result {
+
+    private final List<Result> results = new ArrayList<>(1);
+    private boolean done = false;
+
+    FanOutResult(Result first) {
+        results.add(first);
+    }
+
+    /**
+     * @return false if the reply was already sent
+     */
+    synchronized boolean add(Result result) {
+        if (done) {
+            return false;
+        }
+        results.add(result);
+        return true;
+    }
+
+    @Override
+    public void success(Object o) {
+        for (Result result : finish()) {
+            result.success(o);
+        }
+    }
+
+    @Override
+    public void error(String code, String message, Object details) {
+        for (Result result : finish()) {
+            result.error(code, message, details);
+        }
+    }
+
+    @Override
+    public void notImplemented() {
+        for (Result result : finish()) {
+            result.notImplemented();
+        }
+    }
+
+    /**
+     * Called once, right before the reply goes out.
+     */
+    void finished() {
+    }
+
+    // Helpers
+
+    private List<Result> finish() {
+        synchronized (this) {
+            if (done) {
+                return new ArrayList<>();
+            }
+            done = true;
+        }
+        finished();
+        return results;
+    }
+
+}
@@ -0,0 +1,26 @@
+package com.zone24x7.wifi_settings;
+
+/**
+ * The current connection as reported by the {@link WifiBackend}.
+ */
+final class LinkInfo {
+
+    // Plain SSID, may be null when the app cannot see it.
+    final String ssid;
+    final String bssid;
+    // dBm.
+    final int rssi;
+    // Mbps.
+    final int linkSpeed;
+    // MHz.
+    final int frequency;
+
+    LinkInfo(String ssid, String bssid, int rssi, int linkSpeed, int frequency) {
+        this.ssid = ssid;
+        this.bssid = bssid;
+        this.rssi = rssi;
+        this.linkSpeed = linkSpeed;
+        this.frequency = frequency;
+    }
+
+}
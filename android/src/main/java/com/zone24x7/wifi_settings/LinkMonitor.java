@@ -0,0 +1,243 @@
+package com.zone24x7.wifi_settings;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.wifi.WifiManager;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import io.flutter.plugin.common.EventChannel;
+
+/**
+ * Samples the current connection into {@link LinkStats} on its own
+ * background priority thread, every interval and, optionally, whenever
+ * the system reports an RSSI change.
+ * <p>
+ * The stats can be read at any time with {@link #snapshot()}. While Dart
+ * listeners are subscribed, one per engine through {@link #streamHandler()},
+ * the snapshot is also pushed to them, at most once per throttle
+ * interval. The first listener starts the sampling if it is not running
+ * yet and the last one stops it again when it leaves.
+ */
+class LinkMonitor {
+
+    static final String CHANNEL = "wifi_settings/link_quality";
+
+    static final long DEFAULT_INTERVAL_MILLIS = 2000;
+    private static final long MIN_INTERVAL_MILLIS = 100;
+    private static final long DEFAULT_THROTTLE_MILLIS = 1000;
+
+    private final Context context;
+    private final WifiBackend backend;
+    private final MethodDispatcher dispatcher;
+    private final LinkStats stats = new LinkStats();
+
+    // Guarded by this.
+    private HandlerThread thread;
+    private Handler handler;
+    private long intervalMillis;
+    private boolean onRssiChanged;
+    private boolean startedByStream;
+
+    // Set on the main thread, read by the sampling thread.
+    private final List<EventChannel.EventSink> sinks = new CopyOnWriteArrayList<>();
+    private volatile long throttleMillis = DEFAULT_THROTTLE_MILLIS;
+
+    // Only touched from the sampling thread.
+    private long lastEmittedAt = 0;
+
+    private final BroadcastReceiver receiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            // Delivered on the sampling thread.
+            sample();
+        }
+    };
+
+    private final Runnable tick = new Runnable() {
+        @Override
+        public void run() {
+            sample();
+            Handler handler = handler();
+            if (handler != null) {
+                handler.postDelayed(this, interval());
+            }
+        }
+    };
+
+    LinkMonitor(Context context, WifiBackend backend, MethodDispatcher dispatcher) {
+        this.context = context;
+        this.backend = backend;
+        this.dispatcher = dispatcher;
+    }
+
+    /**
+     * Starts sampling, or changes the rate if it is running already.
+     *
+     * @param intervalMillis time between two samples
+     * @param onRssiChanged  sample on RSSI_CHANGED_ACTION as well
+     */
+    synchronized void start(long intervalMillis, boolean onRssiChanged) {
+
+        this.intervalMillis = Math.max(MIN_INTERVAL_MILLIS, intervalMillis);
+        this.startedByStream = false;
+
+        if (thread == null) {
+            thread = new HandlerThread("wifi_settings-link", Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            handler = new Handler(thread.getLooper());
+        } else {
+            handler.removeCallbacks(tick);
+        }
+        handler.post(tick);
+
+        if (onRssiChanged && !this.onRssiChanged) {
+            context.registerReceiver(receiver, new IntentFilter(WifiManager.RSSI_CHANGED_ACTION), null, handler);
+        } else if (!onRssiChanged && this.onRssiChanged) {
+            context.unregisterReceiver(receiver);
+        }
+        this.onRssiChanged = onRssiChanged;
+
+        Trace.event(Trace.LINK_MONITOR, null, this.intervalMillis, onRssiChanged ? 1 : 0);
+
+    }
+
+    synchronized void stop() {
+
+        if (thread == null) {
+            return;
+        }
+        if (onRssiChanged) {
+            context.unregisterReceiver(receiver);
+            onRssiChanged = false;
+        }
+        handler.removeCallbacks(tick);
+        thread.quit();
+        thread = null;
+        handler = null;
+        Trace.event(Trace.LINK_MONITOR, null, 0, 0);
+
+    }
+
+    /**
+     * @return see {@link LinkStats#snapshot(long)}, plus running
+     */
+    Map<String, Object> snapshot() {
+        Map<String, Object> m = stats.snapshot(SystemClock.elapsedRealtime());
+        m.put("running", handler() != null);
+        return m;
+    }
+
+    /**
+     * @return a handler for the event channel of one engine
+     */
+    EventChannel.StreamHandler streamHandler() {
+        return new EventChannel.StreamHandler() {
+
+            private EventChannel.EventSink sink;
+
+            /**
+             * @param arguments optional {throttleMillis, intervalMillis}
+             * @param events    {@link EventChannel.EventSink}
+             */
+            @Override
+            public void onListen(Object arguments, EventChannel.EventSink events) {
+                sink = events;
+                listen(arguments, events);
+            }
+
+            @Override
+            public void onCancel(Object arguments) {
+                if (sink != null) {
+                    cancel(sink);
+                    sink = null;
+                }
+            }
+
+        };
+    }
+
+    void dispose() {
+        sinks.clear();
+        stop();
+    }
+
+    // Helpers
+
+    private void listen(Object arguments, EventChannel.EventSink sink) {
+
+        long interval = DEFAULT_INTERVAL_MILLIS;
+        throttleMillis = DEFAULT_THROTTLE_MILLIS;
+        if (arguments instanceof Map) {
+            Map<?, ?> args = (Map<?, ?>) arguments;
+            if (args.get("throttleMillis") instanceof Number) {
+                throttleMillis = Math.max(0, ((Number) args.get("throttleMillis")).longValue());
+            }
+            if (args.get("intervalMillis") instanceof Number) {
+                interval = ((Number) args.get("intervalMillis")).longValue();
+            }
+        }
+
+        sinks.add(sink);
+        synchronized (this) {
+            if (thread == null) {
+                start(interval, false);
+                startedByStream = true;
+            }
+        }
+
+    }
+
+    private void cancel(EventChannel.EventSink sink) {
+        sinks.remove(sink);
+        synchronized (this) {
+            if (sinks.isEmpty() && startedByStream) {
+                stop();
+            }
+        }
+    }
+
+    private synchronized Handler handler() {
+        return handler;
+    }
+
+    private synchronized long interval() {
+        return intervalMillis;
+    }
+
+    private void sample() {
+
+        long now = SystemClock.elapsedRealtime();
+        try {
+            stats.record(now, backend.connectionInfo());
+        } catch (RuntimeException e) {
+            // Wi-Fi service gone, try again next time.
+            return;
+        }
+
+        if (sinks.isEmpty() || now - lastEmittedAt < throttleMillis) {
+            return;
+        }
+        lastEmittedAt = now;
+
+        final Map<String, Object> event = snapshot();
+        dispatcher.runOnMainThread(new Runnable() {
+            @Override
+            public void run() {
+                for (EventChannel.EventSink sink : sinks) {
+                    sink.success(event);
+                }
+            }
+        });
+
+    }
+
+}
@@ -0,0 +1,115 @@
+package com.zone24x7.wifi_settings;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Rolling statistics over the last {@link #CAPACITY} link samples.
+ * <p>
+ * Samples go into primitive ring buffers, so recording allocates
+ * nothing. Percentiles are computed on a copy of the window when a
+ * snapshot is taken, which with a few hundred samples is cheaper than
+ * maintaining a sorted structure on every sample. A change of BSSID
+ * starts a new window, since the old samples describe another link.
+ */
+class LinkStats {
+
+    static final int CAPACITY = 256;
+
+    private final long[] times = new long[CAPACITY];
+    private final int[] rssi = new int[CAPACITY];
+    private final int[] linkSpeed = new int[CAPACITY];
+
+    // Guarded by this.
+    private int next = 0;
+    private int size = 0;
+    private long samples = 0;
+    private String ssid;
+    private String bssid;
+    private int frequency;
+
+    /**
+     * @param timeMillis monotonic time of the sample
+     * @param link       the sample, null while not connected
+     */
+    synchronized void record(long timeMillis, LinkInfo link) {
+
+        if (link == null) {
+            clear(null, null);
+            return;
+        }
+
+        if (bssid == null || !bssid.equals(link.bssid)) {
+            clear(link.ssid, link.bssid);
+        }
+
+        times[next] = timeMillis;
+        rssi[next] = link.rssi;
+        linkSpeed[next] = link.linkSpeed;
+        frequency = link.frequency;
+        next = (next + 1) % CAPACITY;
+        size = Math.min(size + 1, CAPACITY);
+        samples++;
+
+    }
+
+    /**
+     * @param nowMillis monotonic time, same clock as the samples
+     * @return {connected, ssid, bssid, frequency, samples, windowMillis,
+     * ageMillis, rssi: {last, min, p10, p50, avg, max}, linkSpeed: {...}}
+     */
+    synchronized Map<String, Object> snapshot(long nowMillis) {
+
+        Map<String, Object> m = new HashMap<>();
+        m.put("connected", size > 0);
+        m.put("samples", samples);
+        if (size == 0) {
+            return m;
+        }
+
+        int last = (next + CAPACITY - 1) % CAPACITY;
+        int first = (next + CAPACITY - size) % CAPACITY;
+        m.put("ssid", ssid);
+        m.put("bssid", bssid);
+        m.put("frequency", frequency);
+        m.put("windowMillis", times[last] - times[first]);
+        m.put("ageMillis", nowMillis - times[last]);
+        m.put("rssi", summary(rssi, last));
+        m.put("linkSpeed", summary(linkSpeed, last));
+        return m;
+
+    }
+
+    // Helpers
+
+    private void clear(String ssid, String bssid) {
+        this.ssid = ssid;
+        this.bssid = bssid;
+        this.next = 0;
+        this.size = 0;
+    }
+
+    private Map<String, Integer> summary(int[] ring, int last) {
+
+        // Until it wraps the window is the start of the ring.
+        int[] window = Arrays.copyOf(ring, size);
+        Arrays.sort(window);
+
+        long sum = 0;
+        for (int value : window) {
+            sum += value;
+        }
+
+        Map<String, Integer> m = new HashMap<>();
+        m.put("last", ring[last]);
+        m.put("min", window[0]);
+        m.put("p10", window[(window.length - 1) / 10]);
+        m.put("p50", window[(window.length - 1) / 2]);
+        m.put("avg", (int) (sum / window.length));
+        m.put("max", window[window.length - 1]);
+        return m;
+
+    }
+
+}
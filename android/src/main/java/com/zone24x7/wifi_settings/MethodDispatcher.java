@@ -0,0 +1,282 @@
+package com.zone24x7.wifi_settings;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.flutter.plugin.common.MethodChannel.Result;
+
+/**
+ * Runs method channel calls on a small bounded pool of background
+ * workers so that the binder calls made by {@link WiFiConnector}
+ * and friends never block the platform main thread. Connects, which
+ * wait for an IP and sleep between retries, get a thread of their own
+ * so they never hold up the workers serving quick reads. Every
+ * {@link Result} handed to a task is wrapped so that the reply is
+ * posted back to the main looper, as the flutter engine expects.
+ */
+class MethodDispatcher {
+
+    private static final int WORKERS = 2;
+    private static final int QUEUE_CAPACITY = 16;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+    // ConnectQueue keeps at most one connect running and one pending.
+    private static final int CONNECT_QUEUE_CAPACITY = 2;
+
+    interface Task {
+        void run(Result result);
+    }
+
+    private final ThreadPoolExecutor executor;
+    private final ThreadPoolExecutor connectExecutor;
+    private final Handler mainHandler;
+    private final ConcurrentHashMap<String, Latency> latencies = new ConcurrentHashMap<>();
+
+    MethodDispatcher() {
+        this.mainHandler = new Handler(Looper.getMainLooper());
+        this.executor = new ThreadPoolExecutor(
+                WORKERS, WORKERS,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(QUEUE_CAPACITY),
+                new WorkerFactory("wifi-settings-worker-"));
+        this.executor.allowCoreThreadTimeOut(true);
+        this.connectExecutor = new ThreadPoolExecutor(
+                1, 1,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(CONNECT_QUEUE_CAPACITY),
+                new WorkerFactory("wifi-settings-connect-"));
+        this.connectExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Queues the task on the worker pool. If the queue is full the
+     * call fails straight away with {@link EC#DISPATCH_REJECTED}
+     * instead of piling up more work behind a slow binder call.
+     *
+     * @param method name of the channel method, used for the latency stats
+     * @param result {@link Result}
+     * @param task   the work to run off the main thread
+     * @return false if the call was rejected
+     */
+    boolean dispatch(String method, Result result, Task task) {
+        return dispatch(executor, method, result, task);
+    }
+
+    /**
+     * Like {@link #dispatch(String, Result, Task)}, but on the connect
+     * thread. Callers serialize connects themselves, see {@link ConnectQueue}.
+     */
+    boolean dispatchConnect(String method, Result result, Task task) {
+        return dispatch(connectExecutor, method, result, task);
+    }
+
+    /**
+     * Fire and forget work that has no {@link Result} to answer, such
+     * as stream emissions.
+     *
+     * @return false if the queue is full and the work was dropped
+     */
+    boolean execute(Runnable runnable) {
+        try {
+            executor.execute(runnable);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    void runOnMainThreadDelayed(Runnable runnable, long delayMillis) {
+        mainHandler.postDelayed(runnable, delayMillis);
+    }
+
+    void cancelOnMainThread(Runnable runnable) {
+        mainHandler.removeCallbacks(runnable);
+    }
+
+    void runOnMainThread(Runnable runnable) {
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            runnable.run();
+        } else {
+            mainHandler.post(runnable);
+        }
+    }
+
+    /**
+     * Per-method latency numbers since the plugin was created.
+     *
+     * @return method name -> {count, avgMicros, maxMicros, avgQueueMicros}
+     */
+    Map<String, Map<String, Long>> stats() {
+        Map<String, Map<String, Long>> stats = new HashMap<>();
+        for (Map.Entry<String, Latency> entry : latencies.entrySet()) {
+            stats.put(entry.getKey(), entry.getValue().toMap());
+        }
+        return stats;
+    }
+
+    void shutdown() {
+        executor.shutdown();
+        connectExecutor.shutdown();
+    }
+
+    // Helpers
+
+    private boolean dispatch(ThreadPoolExecutor executor, final String method, final Result result, final Task task) {
+
+        final long queuedAt = System.nanoTime();
+        final Latency latency = latency(method);
+
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    long startedAt = System.nanoTime();
+                    latency.queued(startedAt - queuedAt);
+                    MainThreadResult reply = new MainThreadResult(result, latency, startedAt);
+                    try {
+                        task.run(reply);
+                    } catch (RuntimeException e) {
+                        reply.error(e.getMessage(), null, null);
+                    }
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            new MainThreadResult(result, latency, queuedAt)
+                    .error(EC.DISPATCH_REJECTED.toString(), null, null);
+            return false;
+        }
+
+    }
+
+    private Latency latency(String method) {
+        Latency latency = latencies.get(method);
+        if (latency == null) {
+            latency = new Latency();
+            Latency existing = latencies.putIfAbsent(method, latency);
+            if (existing != null) {
+                latency = existing;
+            }
+        }
+        return latency;
+    }
+
+    private static class Latency {
+
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong totalNanos = new AtomicLong();
+        private final AtomicLong maxNanos = new AtomicLong();
+        private final AtomicLong queueNanos = new AtomicLong();
+
+        void queued(long nanos) {
+            queueNanos.addAndGet(nanos);
+        }
+
+        void completed(long nanos) {
+            count.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+            long max = maxNanos.get();
+            while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+                max = maxNanos.get();
+            }
+        }
+
+        Map<String, Long> toMap() {
+            long n = Math.max(1, count.get());
+            Map<String, Long> m = new HashMap<>();
+            m.put("count", count.get());
+            m.put("avgMicros", totalNanos.get() / n / 1000);
+            m.put("maxMicros", maxNanos.get() / 1000);
+            m.put("avgQueueMicros", queueNanos.get() / n / 1000);
+            return m;
+        }
+
+    }
+
+    /**
+     * Posts the reply back to the main looper and records how long
+     * the call took from the moment a worker picked it up.
+     */
+    private class MainThreadResult implements Result {
+
+        private final Result delegate;
+        private final Latency latency;
+        private final long startedAt;
+
+        MainThreadResult(Result delegate, Latency latency, long startedAt) {
+            this.delegate = delegate;
+            this.latency = latency;
+            this.startedAt = startedAt;
+        }
+
+        @Override
+        public void success(final Object o) {
+            latency.completed(System.nanoTime() - startedAt);
+            runOnMainThread(new Runnable() {
+                @Override
+                public void run() {
+                    delegate.success(o);
+                }
+            });
+        }
+
+        @Override
+        public void error(final String code, final String message, final Object details) {
+            latency.completed(System.nanoTime() - startedAt);
+            runOnMainThread(new Runnable() {
+                @Override
+                public void run() {
+                    delegate.error(code, message, details);
+                }
+            });
+        }
+
+        @Override
+        public void notImplemented() {
+            latency.completed(System.nanoTime() - startedAt);
+            runOnMainThread(new Runnable() {
+                @Override
+                public void run() {
+                    delegate.notImplemented();
+                }
+            });
+        }
+
+    }
+
+    private static class WorkerFactory implements ThreadFactory {
+
+        private final String prefix;
+        private final AtomicInteger count = new AtomicInteger();
+
+        WorkerFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, prefix + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+
+    }
+
+}
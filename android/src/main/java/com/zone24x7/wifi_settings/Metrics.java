@@ -0,0 +1,149 @@
+package com.zone24x7.wifi_settings;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Per-phase latency histograms for the connect pipeline.
+ * <p>
+ * Every phase has the same fixed set of exponential buckets, 25% apart,
+ * from 10us up to roughly a minute. Recording is a binary search over
+ * the bucket bounds plus a few atomic adds, with no allocation, so it
+ * can stay on in release builds. Percentiles are derived from the
+ * buckets when a snapshot is taken and report the upper bound of the
+ * bucket the percentile falls in, but never more than the slowest
+ * sample.
+ */
+class Metrics {
+
+    enum Phase {
+        READY,
+        CONFIGURED_LOOKUP,
+        SCAN_LOOKUP,
+        ADD_NETWORK,
+        UPDATE_NETWORK,
+        REMOVE_NETWORKS,
+        ENABLE_NETWORK,
+        RECONNECT,
+        ASSOCIATE,
+        DHCP,
+        REQUEST_NETWORK,
+        LEGACY_CONNECT,
+        SPECIFIER_CONNECT,
+        CONNECT
+    }
+
+    private static final Phase[] PHASES = Phase.values();
+    private static final int BUCKETS = 72;
+    private static final long[] BOUNDS_MICROS = new long[BUCKETS];
+
+    static {
+        double bound = 10;
+        for (int i = 0; i < BUCKETS; i++) {
+            BOUNDS_MICROS[i] = (long) bound;
+            bound *= 1.25;
+        }
+        // Everything slower ends up in the last bucket.
+        BOUNDS_MICROS[BUCKETS - 1] = Long.MAX_VALUE;
+    }
+
+    private final AtomicLongArray buckets = new AtomicLongArray(PHASES.length * BUCKETS);
+    private final AtomicLongArray counts = new AtomicLongArray(PHASES.length);
+    private final AtomicLongArray totals = new AtomicLongArray(PHASES.length);
+    private final AtomicLongArray maxima = new AtomicLongArray(PHASES.length);
+
+    /**
+     * @return a monotonic timestamp to pass to {@link #record(Phase, long)}
+     */
+    static long start() {
+        return System.nanoTime();
+    }
+
+    void record(Phase phase, long startedAtNanos) {
+        recordMicros(phase, (System.nanoTime() - startedAtNanos) / 1000);
+    }
+
+    void recordMicros(Phase phase, long micros) {
+
+        int p = phase.ordinal();
+        buckets.incrementAndGet(p * BUCKETS + bucket(micros));
+        counts.incrementAndGet(p);
+        totals.addAndGet(p, micros);
+
+        long max = maxima.get(p);
+        while (micros > max && !maxima.compareAndSet(p, max, micros)) {
+            max = maxima.get(p);
+        }
+
+    }
+
+    /**
+     * @return phase name -> {count, avgMicros, p50Micros, p95Micros, p99Micros, maxMicros}
+     * for every phase recorded at least once
+     */
+    Map<String, Map<String, Long>> snapshot() {
+
+        Map<String, Map<String, Long>> snapshot = new HashMap<>();
+
+        for (Phase phase : PHASES) {
+            int p = phase.ordinal();
+            long count = counts.get(p);
+            if (count == 0) {
+                continue;
+            }
+            Map<String, Long> m = new HashMap<>();
+            m.put("count", count);
+            m.put("avgMicros", totals.get(p) / count);
+            m.put("p50Micros", percentile(p, count, 0.50));
+            m.put("p95Micros", percentile(p, count, 0.95));
+            m.put("p99Micros", percentile(p, count, 0.99));
+            m.put("maxMicros", maxima.get(p));
+            snapshot.put(phase.name(), m);
+        }
+
+        return snapshot;
+
+    }
+
+    void reset() {
+        for (int i = 0; i < buckets.length(); i++) {
+            buckets.set(i, 0);
+        }
+        for (int p = 0; p < PHASES.length; p++) {
+            counts.set(p, 0);
+            totals.set(p, 0);
+            maxima.set(p, 0);
+        }
+    }
+
+    // Helpers
+
+    private static int bucket(long micros) {
+        int lo = 0;
+        int hi = BUCKETS - 1;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (micros <= BOUNDS_MICROS[mid]) {
+                hi = mid;
+            } else {
+                lo = mid + 1;
+            }
+        }
+        return lo;
+    }
+
+    private long percentile(int p, long count, double q) {
+        long rank = (long) Math.ceil(count * q);
+        long seen = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            seen += buckets.get(p * BUCKETS + b);
+            if (seen >= rank) {
+                // Covers the open ended last bucket too.
+                return Math.min(BOUNDS_MICROS[b], maxima.get(p));
+            }
+        }
+        return maxima.get(p);
+    }
+
+}
@@ -0,0 +1,78 @@
+package com.zone24x7.wifi_settings;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * SSID keyed lookup table for the latest scan results, shared by every
+ * {@link WiFiConnector}. The table holds the best access points of
+ * every SSID, see {@link BssidRanking}, and is rebuilt after a scan the
+ * plugin asked for completes. Scans are not watched otherwise, so the
+ * table is also rebuilt once it is older than {@link #MAX_AGE_MILLIS},
+ * which picks up scans the system ran meanwhile. Lookups are a single
+ * hash probe on the plain SSID and allocate nothing. Configured networks
+ * are kept by {@link ConfiguredNetworks}.
+ */
+class NetworkIndex {
+
+    static final long MAX_AGE_MILLIS = 5000;
+
+    private final WifiBackend backend;
+
+    private volatile boolean scansStale = true;
+    private volatile long builtAtNanos;
+
+    private volatile Map<String, AccessPoint[]> scans = Collections.emptyMap();
+
+    NetworkIndex(WifiBackend backend) {
+        this.backend = backend;
+    }
+
+    /**
+     * @return the best access point of the SSID or null
+     */
+    AccessPoint scanResult(String ssid) {
+        AccessPoint[] top = scans().get(ssid);
+        return top != null ? top[0] : null;
+    }
+
+    /**
+     * @return up to {@link BssidRanking#TOP} access points of the SSID, best first
+     */
+    List<AccessPoint> bestBssids(String ssid) {
+        AccessPoint[] top = scans().get(ssid);
+        return top != null ? Collections.unmodifiableList(Arrays.asList(top)) : Collections.<AccessPoint>emptyList();
+    }
+
+    void invalidateScans() {
+        scansStale = true;
+    }
+
+    // Helpers
+
+    private Map<String, AccessPoint[]> scans() {
+
+        if (isFresh()) {
+            return scans;
+        }
+
+        synchronized (this) {
+            if (!isFresh()) {
+                // Cleared before reading, so a scan that completes while
+                // building marks the new table stale again.
+                scansStale = false;
+                builtAtNanos = System.nanoTime();
+                scans = BssidRanking.rank(backend.scanResults());
+            }
+            return scans;
+        }
+
+    }
+
+    private boolean isFresh() {
+        return !scansStale && System.nanoTime() - builtAtNanos < MAX_AGE_MILLIS * 1000000;
+    }
+
+}
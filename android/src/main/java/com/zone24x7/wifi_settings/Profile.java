@@ -0,0 +1,70 @@
+package com.zone24x7.wifi_settings;
+
+/**
+ * A network profile to be saved by the {@link WifiBackend}: the
+ * credentials of a {@link ConnectRequest} plus the key management picked
+ * for it from the scan.
+ */
+final class Profile {
+
+    static final int OPEN = 0;
+    static final int WEP = 1;
+    static final int PSK = 2;
+    static final int EAP = 3;
+    static final int SAE = 4;
+    static final int OWE = 5;
+
+    final ConnectRequest request;
+    final int security;
+    // The access point to stay on, null to let the supplicant roam.
+    final String bssid;
+
+    Profile(ConnectRequest request, int security) {
+        this(request, security, null);
+    }
+
+    Profile(ConnectRequest request, int security, String bssid) {
+        this.request = request;
+        this.security = security;
+        this.bssid = bssid;
+    }
+
+    /**
+     * @param mask {@link Capabilities} of the access point
+     * @return the profile security to use for it
+     */
+    static int security(int mask) {
+        if ((mask & Capabilities.EAP) != 0 && (mask & Capabilities.PSK) == 0) {
+            return EAP;
+        }
+        if (Capabilities.needsModernConfig(mask)) {
+            return (mask & Capabilities.SAE) != 0 ? SAE : OWE;
+        }
+        if ((mask & (Capabilities.PSK | Capabilities.WPA | Capabilities.WPA2)) != 0) {
+            return PSK;
+        }
+        if ((mask & Capabilities.WEP) != 0) {
+            return WEP;
+        }
+        return OPEN;
+    }
+
+    /**
+     * @param entry a saved profile
+     * @return the profile security of its coarse security class, WPA3
+     * profiles are classed as {@link #PSK}
+     */
+    static int security(ConfiguredNetworks.Entry entry) {
+        switch (entry.security) {
+            case ConfiguredNetworks.SECURITY_WEP:
+                return WEP;
+            case ConfiguredNetworks.SECURITY_PSK:
+                return PSK;
+            case ConfiguredNetworks.SECURITY_EAP:
+                return EAP;
+            default:
+                return OPEN;
+        }
+    }
+
+}
@@ -0,0 +1,191 @@
+package com.zone24x7.wifi_settings;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps one saved profile per SSID. A network that is already
+ * configured is updated in place with updateNetwork instead of being
+ * added again, and profiles can be removed in batches that are
+ * persisted once.
+ * <p>
+ * On Android M and later profiles saved by other apps can be neither
+ * updated nor removed. Those are used as they are, and only replaced
+ * with addNetwork for a fresh profile (see {@link RetryPolicy}); they
+ * are skipped when removing.
+ */
+class ProfileReconciler {
+
+    private final WifiBackend backend;
+    private final ConfiguredNetworks configuredNetworks;
+    private final Metrics metrics;
+
+    // Fingerprint of the credentials last saved by this process, per
+    // SSID. Saved passwords cannot be read back, so this is the only way
+    // to tell if the caller changed them. Kept in memory only, so that
+    // no password hash ever reaches the disk.
+    private final Map<String, Integer> fingerprints = new ConcurrentHashMap<>();
+
+    ProfileReconciler(WifiBackend backend, ConfiguredNetworks configuredNetworks, Metrics metrics) {
+        this.backend = backend;
+        this.configuredNetworks = configuredNetworks;
+        this.metrics = metrics;
+    }
+
+    /**
+     * @param entry    the saved profile
+     * @param mask     {@link Capabilities} of the visible network
+     * @param password password the caller is connecting with
+     * @param bssid    BSSID the profile has to be pinned to, null for none
+     * @return true if the profile has to be rewritten before it is used
+     */
+    boolean isOutdated(ConfiguredNetworks.Entry entry, int mask, String password, String bssid) {
+        if (ConfiguredNetworks.security(mask) != entry.security) {
+            return true;
+        }
+        Integer saved = fingerprints.get(entry.ssid);
+        if (saved == null) {
+            // Saved by another app or an earlier process, the credentials
+            // are unknown and trusted. If they are stale the connect fails
+            // to authenticate and is retried with a fresh profile. Not
+            // saved by us, so not pinned either.
+            return bssid != null;
+        }
+        return saved != fingerprint(entry.ssid, password, bssid);
+    }
+
+    /**
+     * Saves the profile, updating the existing one for the SSID if
+     * there is one. Duplicates of it are removed on the way. An existing
+     * profile that cannot be updated is kept as it is, unless the
+     * request asks for a fresh profile.
+     *
+     * @param profile profile to save
+     * @return the network id, -1 if the profile could not be saved
+     */
+    int save(Profile profile) throws RuntimeException {
+
+        String ssid = profile.request.ssid;
+        ConfiguredNetworks.Entry entry = configuredNetworks.get(ssid);
+        int networkId = -1;
+
+        if (entry != null) {
+            long t = Metrics.start();
+            networkId = backend.updateNetwork(entry.networkId, profile);
+            metrics.record(Metrics.Phase.UPDATE_NETWORK, t);
+            Trace.event(Trace.PROFILE_UPDATED, ssid, entry.networkId, networkId);
+        }
+
+        if (networkId == -1 && entry != null && !profile.request.freshProfile) {
+            // Saved by another app. Adding it again would only leave a
+            // duplicate behind, so the saved profile is used as it is.
+            networkId = entry.networkId;
+        } else {
+            if (networkId == -1) {
+                long t = Metrics.start();
+                networkId = backend.addNetwork(profile);
+                metrics.record(Metrics.Phase.ADD_NETWORK, t);
+            }
+            if (networkId != -1) {
+                fingerprints.put(ssid, fingerprint(ssid, profile.request.password, profile.bssid));
+            }
+        }
+
+        if (entry != null && entry.duplicates.length > 0) {
+            List<Integer> ids = new ArrayList<>(entry.duplicates.length);
+            for (int id : entry.duplicates) {
+                if (id != networkId) {
+                    ids.add(id);
+                }
+            }
+            remove(ids);
+        }
+
+        configuredNetworks.invalidate();
+        return networkId;
+
+    }
+
+    /**
+     * Removes every profile saved for the given SSIDs.
+     *
+     * @return number of profiles removed
+     */
+    int forget(Collection<String> ssids) {
+
+        List<Integer> ids = new ArrayList<>();
+        for (String ssid : ssids) {
+            ConfiguredNetworks.Entry entry = configuredNetworks.get(ssid);
+            if (entry == null) {
+                continue;
+            }
+            ids.add(entry.networkId);
+            for (int id : entry.duplicates) {
+                ids.add(id);
+            }
+            fingerprints.remove(ssid);
+        }
+
+        return remove(ids);
+
+    }
+
+    /**
+     * Removes the duplicate profiles of every SSID, keeping the first
+     * one, together with every profile of the stale SSIDs.
+     *
+     * @param stale SSIDs to drop entirely, may be empty
+     * @return number of profiles removed
+     */
+    int prune(Collection<String> stale) {
+
+        List<Integer> ids = new ArrayList<>();
+        for (ConfiguredNetworks.Entry entry : configuredNetworks.all()) {
+            if (stale.contains(entry.ssid)) {
+                ids.add(entry.networkId);
+                fingerprints.remove(entry.ssid);
+            }
+            for (int id : entry.duplicates) {
+                ids.add(id);
+            }
+        }
+
+        return remove(ids);
+
+    }
+
+    // Helpers
+
+    private int remove(List<Integer> ids) {
+
+        if (ids.isEmpty()) {
+            return 0;
+        }
+
+        long t = Metrics.start();
+        int removed = 0;
+        for (int id : ids) {
+            if (backend.removeNetwork(id)) {
+                removed++;
+            }
+        }
+        if (removed > 0) {
+            // One write of the supplicant config for the whole batch.
+            backend.saveConfiguration();
+            configuredNetworks.invalidate();
+        }
+        metrics.record(Metrics.Phase.REMOVE_NETWORKS, t);
+        Trace.event(Trace.PROFILES_REMOVED, null, removed, ids.size() - removed);
+
+        return removed;
+
+    }
+
+    private static int fingerprint(String ssid, String password, String bssid) {
+        return (ssid + '\u0000' + password + '\u0000' + bssid).hashCode();
+    }
+
+}
@@ -0,0 +1,269 @@
+package com.zone24x7.wifi_settings;
+
+import android.Manifest;
+import android.app.Activity;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.location.LocationManager;
+import android.net.wifi.WifiManager;
+import android.os.Build;
+import android.provider.Settings;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import io.flutter.plugin.common.PluginRegistry;
+
+/**
+ * Cached view of everything the plugin needs before it can talk to the
+ * _wifi manager: runtime permissions, _wifi enabled and location enabled.
+ * <p>
+ * Permissions are checked once and then kept once granted. While a
+ * permission request is showing, calls are parked in a queue and resumed
+ * (or failed) from {@link #onRequestPermissionsResult} instead of failing
+ * straight away. The _wifi and location flags are updated from their state
+ * change broadcasts, so a call only queries the services when the state
+ * is unknown.
+ * <p>
+ * Permissions can only be requested with an activity. Without one, as
+ * in a background engine, a call that still needs them fails right away.
+ */
+class Readiness implements PluginRegistry.RequestPermissionsResultListener {
+
+    private static final int PERMISSIONS_REQUEST_CODE = 0x5753;
+
+    private static final String[] PERMISSIONS = new String[]{
+            Manifest.permission.ACCESS_COARSE_LOCATION,
+            Manifest.permission.ACCESS_FINE_LOCATION,
+            Manifest.permission.ACCESS_NETWORK_STATE,
+            Manifest.permission.ACCESS_WIFI_STATE,
+            Manifest.permission.CHANGE_WIFI_STATE,
+            Manifest.permission.CHANGE_NETWORK_STATE,
+    };
+
+    interface Callback {
+
+        void ready();
+
+        void failed(String code);
+
+    }
+
+    private final Context context;
+    private final WifiManager wifiManager;
+    private final LocationManager locationManager;
+    private final MethodDispatcher dispatcher;
+
+    private volatile Activity activity;
+    private volatile boolean permissionsGranted = false;
+    // Null means unknown, the service is queried on the next check.
+    private volatile Boolean wifiEnabled;
+    private volatile Boolean locationEnabled;
+
+    // Guarded by this.
+    private final List<Callback> waiting = new ArrayList<>();
+    private boolean requesting = false;
+
+    private final BroadcastReceiver receiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (WifiManager.WIFI_STATE_CHANGED_ACTION.equals(intent.getAction())) {
+                int state = intent.getIntExtra(WifiManager.EXTRA_WIFI_STATE, -1);
+                wifiEnabled = state == WifiManager.WIFI_STATE_ENABLED;
+            } else {
+                locationEnabled = null;
+            }
+        }
+    };
+
+    Readiness(Context context, WifiManager wifiManager, LocationManager locationManager,
+              MethodDispatcher dispatcher) {
+        this.context = context;
+        this.wifiManager = wifiManager;
+        this.locationManager = locationManager;
+        this.dispatcher = dispatcher;
+
+        IntentFilter filter = new IntentFilter(WifiManager.WIFI_STATE_CHANGED_ACTION);
+        filter.addAction(LocationManager.PROVIDERS_CHANGED_ACTION);
+        context.registerReceiver(receiver, filter);
+    }
+
+    /**
+     * @param activity the activity to request permissions with, null if
+     *                 there is none
+     */
+    void setActivity(Activity activity) {
+        this.activity = activity;
+    }
+
+    /**
+     * A request that is showing when the last activity goes away for good
+     * never gets its result, so the calls waiting for it fail instead of
+     * hanging. Not called across configuration changes, the recreated
+     * activity delivers the result then.
+     */
+    void activityLost() {
+        synchronized (this) {
+            if (!requesting) {
+                return;
+            }
+        }
+        onRequestPermissionsResult(PERMISSIONS_REQUEST_CODE, PERMISSIONS, new int[0]);
+    }
+
+    /**
+     * Calls back once the permissions are granted. If they are not, the
+     * permissions are requested (once, however many calls are waiting) and
+     * the callback is parked until the user answers.
+     *
+     * @param callback {@link Callback}
+     */
+    void awaitPermissions(Callback callback) {
+
+        if (permissionsGranted || _permissions()) {
+            callback.ready();
+            return;
+        }
+
+        synchronized (this) {
+            waiting.add(callback);
+            if (requesting) {
+                return;
+            }
+            requesting = true;
+        }
+
+        Trace.event(Trace.PERMISSIONS_REQUESTED, null);
+        dispatcher.runOnMainThread(new Runnable() {
+            @Override
+            public void run() {
+                Activity activity = Readiness.this.activity;
+                if (activity == null) {
+                    // Nobody to ask, fail everything that is waiting.
+                    onRequestPermissionsResult(PERMISSIONS_REQUEST_CODE, PERMISSIONS, new int[0]);
+                    return;
+                }
+                activity.requestPermissions(PERMISSIONS, PERMISSIONS_REQUEST_CODE);
+            }
+        });
+
+    }
+
+    /**
+     * Checks the _wifi and location services. Permissions are expected
+     * to be granted already, see {@link #awaitPermissions(Callback)}.
+     *
+     * @throws RuntimeException with the {@link EC} code of the first failure
+     */
+    void requireServices() throws RuntimeException {
+
+        if (!permissionsGranted && !_permissions()) {
+            throw new RuntimeException(EC.PERMISSIONS_NOT_GRANTED.toString());
+        }
+
+        if (!_wifi()) {
+            throw new RuntimeException(EC.WIFI_DISABLED.toString());
+        }
+
+        if (!_location()) {
+            throw new RuntimeException(EC.LOCATION_DISABLED.toString());
+        }
+
+    }
+
+    @Override
+    public boolean onRequestPermissionsResult(int requestCode, String[] permissions, int[] grantResults) {
+
+        if (requestCode != PERMISSIONS_REQUEST_CODE) {
+            return false;
+        }
+
+        boolean granted = grantResults.length > 0;
+        for (int grant : grantResults) {
+            granted &= grant == PackageManager.PERMISSION_GRANTED;
+        }
+        permissionsGranted = granted;
+
+        List<Callback> resumed;
+        synchronized (this) {
+            resumed = new ArrayList<>(waiting);
+            waiting.clear();
+            requesting = false;
+        }
+
+        Trace.event(Trace.PERMISSIONS_RESULT, null, granted ? 1 : 0, resumed.size());
+        for (Callback callback : resumed) {
+            if (granted) {
+                callback.ready();
+            } else {
+                callback.failed(EC.PERMISSIONS_NOT_GRANTED.toString());
+            }
+        }
+
+        return true;
+
+    }
+
+    void dispose() {
+        context.unregisterReceiver(receiver);
+    }
+
+    // Internal methods only
+
+    private boolean _permissions() {
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            for (String permission : PERMISSIONS) {
+                if (context.checkSelfPermission(permission) != PackageManager.PERMISSION_GRANTED) {
+                    return false;
+                }
+            }
+        }
+
+        // Revoking a permission kills the process, so a grant can be kept.
+        permissionsGranted = true;
+        return true;
+
+    }
+
+    private boolean _wifi() {
+
+        Boolean enabled = wifiEnabled;
+        if (enabled == null) {
+            enabled = wifiManager.isWifiEnabled();
+            wifiEnabled = enabled;
+        }
+
+        if (!enabled) {
+            Trace.event(Trace.WIFI_ENABLING, null);
+            return this.wifiManager.setWifiEnabled(true);
+        }
+
+        return true;
+
+    }
+
+    private boolean _location() {
+
+        Boolean enabled = locationEnabled;
+        if (enabled == null) {
+            enabled = locationManager.isProviderEnabled(LocationManager.GPS_PROVIDER);
+            locationEnabled = enabled;
+        }
+
+        if (!enabled) {
+            Intent intent = new Intent();
+            intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+            intent.setAction(Settings.ACTION_LOCATION_SOURCE_SETTINGS);
+            context.startActivity(intent);
+            return false;
+        }
+
+        return true;
+
+    }
+
+}
@@ -0,0 +1,209 @@
+package com.zone24x7.wifi_settings;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Retries a connect natively instead of over the channel.
+ * <p>
+ * Failures the stack recovers from on its own (a refused enable or
+ * reconnect, an association that timed out) are retried up to
+ * {@link #attempts} times in total, after an exponential backoff with
+ * jitter so that retries of several callers do not line up. With
+ * {@link #fallbackToFresh} the first retry also stops using a saved
+ * profile of the SSID and writes a new one from the request, which
+ * recovers profiles that are stale or were saved by another app; an
+ * authentication failure is only retried that way, and only once.
+ * Anything else, such as a network that is not visible, fails right
+ * away. The backoff sleeps on the calling thread, which is the
+ * dispatcher's connect thread.
+ */
+final class RetryPolicy {
+
+    interface Sleeper {
+
+        void sleep(long millis) throws InterruptedException;
+
+    }
+
+    static final Sleeper THREAD_SLEEPER = new Sleeper() {
+        @Override
+        public void sleep(long millis) throws InterruptedException {
+            Thread.sleep(millis);
+        }
+    };
+
+    static final int MAX_ATTEMPTS = 10;
+
+    private static final long DEFAULT_INITIAL_BACKOFF_MILLIS = 500;
+    private static final long DEFAULT_MAX_BACKOFF_MILLIS = 8000;
+    private static final double DEFAULT_MULTIPLIER = 2;
+    private static final double DEFAULT_JITTER = 0.5;
+
+    final int attempts;
+    final long initialBackoffMillis;
+    final long maxBackoffMillis;
+    final double multiplier;
+    // Fraction of the backoff that is randomized, 0 for none.
+    final double jitter;
+    final boolean fallbackToFresh;
+
+    private final Random random;
+    private final Sleeper sleeper;
+
+    RetryPolicy(int attempts, long initialBackoffMillis, long maxBackoffMillis, double multiplier, double jitter,
+                boolean fallbackToFresh, Random random, Sleeper sleeper) {
+        this.attempts = attempts;
+        this.initialBackoffMillis = initialBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+        this.multiplier = multiplier;
+        this.jitter = jitter;
+        this.fallbackToFresh = fallbackToFresh;
+        this.random = random;
+        this.sleeper = sleeper;
+    }
+
+    /**
+     * @param policy {attempts, initialBackoffMillis, maxBackoffMillis,
+     *               multiplier, jitter, fallbackToFresh} from the channel,
+     *               every key optional
+     * @return the policy, null if there is none
+     * @throws RuntimeException {@link EC#INVALID_RETRY_POLICY} for values
+     *                          out of range
+     */
+    static RetryPolicy of(Map<String, Object> policy) throws RuntimeException {
+
+        if (policy == null) {
+            return null;
+        }
+
+        Number attempts = (Number) policy.get("attempts");
+        Number initial = (Number) policy.get("initialBackoffMillis");
+        Number max = (Number) policy.get("maxBackoffMillis");
+        Number multiplier = (Number) policy.get("multiplier");
+        Number jitter = (Number) policy.get("jitter");
+
+        RetryPolicy p = new RetryPolicy(
+                attempts != null ? attempts.intValue() : 3,
+                initial != null ? initial.longValue() : DEFAULT_INITIAL_BACKOFF_MILLIS,
+                max != null ? max.longValue() : DEFAULT_MAX_BACKOFF_MILLIS,
+                multiplier != null ? multiplier.doubleValue() : DEFAULT_MULTIPLIER,
+                jitter != null ? jitter.doubleValue() : DEFAULT_JITTER,
+                !Boolean.FALSE.equals(policy.get("fallbackToFresh")),
+                new Random(), THREAD_SLEEPER);
+
+        if (p.attempts < 1 || p.attempts > MAX_ATTEMPTS
+                || p.initialBackoffMillis < 0 || p.maxBackoffMillis < p.initialBackoffMillis
+                || p.multiplier < 1 || p.jitter < 0 || p.jitter > 1) {
+            throw new RuntimeException(EC.INVALID_RETRY_POLICY.toString());
+        }
+        return p;
+
+    }
+
+    /**
+     * Connects, retrying as the policy allows.
+     *
+     * @param await         wait for the IP, see
+     *                      {@link ConnectionBackend#attemptAndAwait(ConnectRequest, long)}
+     * @param timeoutMillis upper bound for every single attempt
+     * @return {connected, error, attempts: [{ok, error, freshProfile,
+     * backoffMillis, millis}]} plus what the last successful attempt
+     * returned; error is the code of the last failure, null when connected
+     */
+    Map<String, Object> run(ConnectionBackend backend, ConnectRequest request, boolean await, long timeoutMillis) {
+
+        List<Map<String, Object>> reports = new ArrayList<>(attempts);
+        Map<String, Object> m = new HashMap<>();
+        String error = null;
+        long backoff = 0;
+
+        for (int i = 0; i < attempts; i++) {
+
+            Map<String, Object> report = new HashMap<>();
+            report.put("freshProfile", request.freshProfile);
+            report.put("backoffMillis", backoff);
+            reports.add(report);
+
+            long t = System.nanoTime();
+            try {
+                if (await) {
+                    m.putAll(backend.attemptAndAwait(request, timeoutMillis));
+                } else {
+                    backend.attempt(request);
+                }
+                error = null;
+            } catch (RuntimeException e) {
+                error = e.getMessage();
+            }
+            report.put("ok", error == null);
+            report.put("error", error);
+            report.put("millis", (System.nanoTime() - t) / 1000000);
+
+            if (error == null || i == attempts - 1) {
+                break;
+            }
+
+            ConnectRequest next = next(request, error);
+            if (next == null) {
+                break;
+            }
+            request = next;
+
+            backoff = backoffMillis(i);
+            Trace.event(Trace.CONNECT_RETRY, error, i + 1, backoff);
+            try {
+                sleeper.sleep(backoff);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+
+        }
+
+        m.put("connected", error == null);
+        m.put("error", error);
+        m.put("attempts", reports);
+        return m;
+
+    }
+
+    /**
+     * @param retry 0 for the first retry
+     * @return milliseconds to wait before the retry
+     */
+    long backoffMillis(int retry) {
+        double backoff = Math.min(maxBackoffMillis, initialBackoffMillis * Math.pow(multiplier, retry));
+        // Take off up to the jitter fraction, so the cap is never exceeded.
+        return (long) (backoff * (1 - jitter * random.nextDouble()));
+    }
+
+    // Helpers
+
+    /**
+     * @return the request to retry with, null if the failure is final
+     */
+    private ConnectRequest next(ConnectRequest request, String error) {
+
+        boolean fallback = fallbackToFresh && !request.freshProfile;
+
+        if (EC.AUTHENTICATION_FAILED.toString().equals(error)) {
+            // Only a stale saved profile is worth another try.
+            return fallback ? request.withFreshProfile() : null;
+        }
+
+        if (EC.FAILED_TO_ENABLE_NETWORK.toString().equals(error)
+                || EC.RECONNECTION_FAILED.toString().equals(error)
+                || EC.ASSOCIATION_TIMEOUT.toString().equals(error)
+                || EC.WIFI_MANAGER_ERROR.toString().equals(error)) {
+            return fallback ? request.withFreshProfile() : request;
+        }
+
+        return null;
+
+    }
+
+}
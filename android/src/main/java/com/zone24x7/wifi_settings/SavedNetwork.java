@@ -0,0 +1,20 @@
+package com.zone24x7.wifi_settings;
+
+/**
+ * One saved network profile as reported by the {@link WifiBackend}.
+ */
+final class SavedNetwork {
+
+    // As stored by the platform, double quoted unless hex encoded.
+    final String ssid;
+    final int networkId;
+    // One of the ConfiguredNetworks.SECURITY_* classes.
+    final int security;
+
+    SavedNetwork(String ssid, int networkId, int security) {
+        this.ssid = ssid;
+        this.networkId = networkId;
+        this.security = security;
+    }
+
+}
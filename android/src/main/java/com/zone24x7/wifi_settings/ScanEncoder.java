@@ -0,0 +1,208 @@
+package com.zone24x7.wifi_settings;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Serializes scan results for the method channel. Two formats are
+ * supported:
+ * <ul>
+ * <li>{@link #FORMAT_MAP} - one string map per access point. This is the
+ * original response and is kept for compatibility.</li>
+ * <li>{@link #FORMAT_COLUMNAR} - one primitive array per field. SSID and
+ * capabilities are dictionary encoded and BSSIDs are packed as 6 bytes
+ * each, so the payload does not grow with a map per access point.</li>
+ * </ul>
+ * Either format can carry the parsed {@link Capabilities} bitmask in
+ * "security" instead of the raw capabilities string.
+ */
+final class ScanEncoder {
+
+    static final String FORMAT_MAP = "map";
+    static final String FORMAT_COLUMNAR = "columnar";
+
+    private static final int BSSID_BYTES = 6;
+
+    private ScanEncoder() {
+    }
+
+    static Object encode(List<AccessPoint> results, String format) {
+        return encode(results, format, false);
+    }
+
+    static Object encode(List<AccessPoint> results, String format, boolean securityMask) {
+        return encode(results, format, securityMask, null);
+    }
+
+    /**
+     * @param fields the fields to include (see {@link ScanQuery#FIELDS}),
+     *               null for all of them
+     */
+    static Object encode(List<AccessPoint> results, String format, boolean securityMask, Set<String> fields) {
+        if (FORMAT_COLUMNAR.equals(format)) {
+            return columnar(results, securityMask, fields);
+        }
+        return maps(results, securityMask, fields);
+    }
+
+    static List<Map<String, String>> maps(List<AccessPoint> results, boolean securityMask, Set<String> fields) {
+
+        boolean ssid = has(fields, "ssid");
+        boolean bssid = has(fields, "bssid");
+        boolean capabilities = has(fields, "capabilities");
+        boolean level = has(fields, "level");
+        boolean frequency = has(fields, "frequency");
+        List<Map<String, String>> list = new ArrayList<>(results.size());
+
+        for (AccessPoint ap : results) {
+            Map<String, String> m = new HashMap<>();
+            if (ssid) {
+                m.put("ssid", ap.ssid);
+            }
+            if (bssid) {
+                m.put("bssid", ap.bssid);
+            }
+            if (capabilities && securityMask) {
+                m.put("security", String.valueOf(Capabilities.of(ap)));
+            } else if (capabilities) {
+                m.put("capabilities", ap.capabilities);
+            }
+            if (level) {
+                m.put("level", String.valueOf(ap.level));
+            }
+            if (frequency) {
+                m.put("frequency", String.valueOf(ap.frequency));
+            }
+            list.add(m);
+        }
+
+        return list;
+
+    }
+
+    /**
+     * Column oriented encoding. Row i of the response is made of
+     * ssids[ssid[i]], bssid[6i..6i+5], capabilities[capability[i]]
+     * (or security[i]), level[i] and frequency[i]. A missing BSSID is
+     * sent as zeros and decoded as null, as in the map format.
+     *
+     * A column left out by the projection is neither built nor sent.
+     *
+     * @param results      latest scan results
+     * @param securityMask send the capability bitmask instead of the string
+     * @param fields       the fields to include, null for all of them
+     * @return Map understood by WifiSettings.availableNetworks
+     */
+    static Map<String, Object> columnar(List<AccessPoint> results, boolean securityMask, Set<String> fields) {
+
+        int n = results.size();
+        int[] ssid = has(fields, "ssid") ? new int[n] : null;
+        int[] capability = has(fields, "capabilities") ? new int[n] : null;
+        int[] level = has(fields, "level") ? new int[n] : null;
+        int[] frequency = has(fields, "frequency") ? new int[n] : null;
+        byte[] bssid = has(fields, "bssid") ? new byte[n * BSSID_BYTES] : null;
+
+        List<String> ssids = new ArrayList<>();
+        List<String> capabilities = new ArrayList<>();
+        Map<String, Integer> ssidIndex = new HashMap<>();
+        Map<String, Integer> capabilityIndex = new HashMap<>();
+
+        for (int i = 0; i < n; i++) {
+            AccessPoint ap = results.get(i);
+            if (ssid != null) {
+                ssid[i] = intern(ap.ssid, ssids, ssidIndex);
+            }
+            if (capability != null) {
+                capability[i] = securityMask
+                        ? Capabilities.of(ap)
+                        : intern(ap.capabilities, capabilities, capabilityIndex);
+            }
+            if (level != null) {
+                level[i] = ap.level;
+            }
+            if (frequency != null) {
+                frequency[i] = ap.frequency;
+            }
+            if (bssid != null) {
+                packBssid(ap.bssid, bssid, i * BSSID_BYTES);
+            }
+        }
+
+        Map<String, Object> m = new HashMap<>();
+        m.put("format", FORMAT_COLUMNAR);
+        m.put("count", n);
+        if (ssid != null) {
+            m.put("ssids", ssids);
+            m.put("ssid", ssid);
+        }
+        if (capability != null && securityMask) {
+            m.put("security", capability);
+        } else if (capability != null) {
+            m.put("capabilities", capabilities);
+            m.put("capability", capability);
+        }
+        if (bssid != null) {
+            m.put("bssid", bssid);
+        }
+        if (level != null) {
+            m.put("level", level);
+        }
+        if (frequency != null) {
+            m.put("frequency", frequency);
+        }
+        return m;
+
+    }
+
+    // Helpers
+
+    private static boolean has(Set<String> fields, String field) {
+        return fields == null || fields.contains(field);
+    }
+
+    private static int intern(String value, List<String> dictionary, Map<String, Integer> index) {
+        String key = value == null ? "" : value;
+        Integer found = index.get(key);
+        if (found != null) {
+            return found;
+        }
+        int id = dictionary.size();
+        dictionary.add(key);
+        index.put(key, id);
+        return id;
+    }
+
+    /**
+     * Writes a "aa:bb:cc:dd:ee:ff" style BSSID into 6 bytes of the
+     * buffer. Anything that is not a well formed MAC address is written
+     * as zeros, whatever the buffer held before.
+     */
+    static void packBssid(String bssid, byte[] out, int offset) {
+
+        Arrays.fill(out, offset, offset + BSSID_BYTES, (byte) 0);
+        if (bssid == null || bssid.length() != BSSID_BYTES * 3 - 1) {
+            return;
+        }
+
+        long mac = 0;
+        for (int i = 0; i < BSSID_BYTES; i++) {
+            int hi = Character.digit(bssid.charAt(i * 3), 16);
+            int lo = Character.digit(bssid.charAt(i * 3 + 1), 16);
+            if (hi < 0 || lo < 0) {
+                return;
+            }
+            mac = (mac << 8) | (hi << 4) | lo;
+        }
+
+        for (int i = BSSID_BYTES - 1; i >= 0; i--) {
+            out[offset + i] = (byte) mac;
+            mac >>>= 8;
+        }
+
+    }
+
+}
@@ -0,0 +1,177 @@
+package com.zone24x7.wifi_settings;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the last scan snapshot keyed by BSSID so that callers which
+ * poll the scan results can ask only for what changed since the
+ * generation they saw last.
+ * <p>
+ * Every refresh that changes anything bumps the generation. Each entry
+ * remembers the generation it was added or last changed at, and removed
+ * entries are kept as tombstones for {@link #RETAINED_GENERATIONS}
+ * generations. A diff against a generation older than that (or one this
+ * instance never handed out) falls back to the full snapshot.
+ */
+class ScanHistory {
+
+    /**
+     * Signal level moves smaller than this are not reported as changes,
+     * otherwise almost every access point would change on every scan.
+     */
+    private static final int LEVEL_TOLERANCE_DBM = 3;
+    private static final int RETAINED_GENERATIONS = 32;
+
+    private final Map<String, Entry> entries = new HashMap<>();
+    private final Map<String, Long> removed = new HashMap<>();
+
+    // Generations start at wall clock millis, so a generation kept by
+    // the Dart side across a process restart is never mistaken for one
+    // handed out by this instance.
+    private final long firstGeneration = System.currentTimeMillis();
+    private long generation = firstGeneration;
+
+    /**
+     * Folds the latest scan results into the snapshot.
+     *
+     * @param results latest scan results
+     * @return the current generation
+     */
+    synchronized long refresh(List<AccessPoint> results) {
+
+        long next = generation + 1;
+        boolean dirty = false;
+        Map<String, AccessPoint> seen = new HashMap<>(results.size() * 2);
+
+        for (AccessPoint ap : results) {
+            if (ap.bssid == null) {
+                continue;
+            }
+            seen.put(ap.bssid, ap);
+            Entry entry = entries.get(ap.bssid);
+            if (entry == null) {
+                entries.put(ap.bssid, new Entry(ap, next));
+                removed.remove(ap.bssid);
+                dirty = true;
+            } else if (entry.differs(ap)) {
+                entry.result = ap;
+                entry.changedAt = next;
+                dirty = true;
+            } else {
+                entry.result = ap;
+            }
+        }
+
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            String bssid = it.next().getKey();
+            if (!seen.containsKey(bssid)) {
+                it.remove();
+                removed.put(bssid, next);
+                dirty = true;
+            }
+        }
+
+        if (dirty) {
+            generation = next;
+            pruneTombstones();
+        }
+
+        return generation;
+
+    }
+
+    /**
+     * Everything that was added, changed or removed after the given
+     * generation.
+     *
+     * @param since        generation the caller has already seen
+     * @param format       response encoding for the entries, see {@link ScanEncoder}
+     * @param securityMask send capability bitmasks instead of strings
+     * @return {generation, full, added, changed, removed}
+     */
+    synchronized Map<String, Object> since(long since, String format, boolean securityMask) {
+
+        boolean full = since < horizon() || since > generation;
+        List<AccessPoint> added = new ArrayList<>();
+        List<AccessPoint> changed = new ArrayList<>();
+        List<String> gone = new ArrayList<>();
+
+        for (Entry entry : entries.values()) {
+            if (full || entry.addedAt > since) {
+                added.add(entry.result);
+            } else if (entry.changedAt > since) {
+                changed.add(entry.result);
+            }
+        }
+
+        if (!full) {
+            for (Map.Entry<String, Long> tombstone : removed.entrySet()) {
+                if (tombstone.getValue() > since) {
+                    gone.add(tombstone.getKey());
+                }
+            }
+        }
+
+        Map<String, Object> m = new HashMap<>();
+        m.put("generation", generation);
+        m.put("full", full);
+        m.put("added", ScanEncoder.encode(added, format, securityMask));
+        m.put("changed", ScanEncoder.encode(changed, format, securityMask));
+        m.put("removed", gone);
+        return m;
+
+    }
+
+    // Helpers
+
+    private long horizon() {
+        return Math.max(firstGeneration, generation - RETAINED_GENERATIONS);
+    }
+
+    private void pruneTombstones() {
+        long horizon = horizon();
+        Iterator<Long> it = removed.values().iterator();
+        while (it.hasNext()) {
+            if (it.next() <= horizon) {
+                it.remove();
+            }
+        }
+    }
+
+    private static class Entry {
+
+        private AccessPoint result;
+        private final long addedAt;
+        private long changedAt;
+        private int reportedLevel;
+
+        Entry(AccessPoint result, long generation) {
+            this.result = result;
+            this.addedAt = generation;
+            this.changedAt = generation;
+            this.reportedLevel = result.level;
+        }
+
+        boolean differs(AccessPoint ap) {
+            boolean differs = Math.abs(ap.level - reportedLevel) >= LEVEL_TOLERANCE_DBM
+                    || ap.frequency != result.frequency
+                    || !equal(ap.ssid, result.ssid)
+                    || !equal(ap.capabilities, result.capabilities);
+            if (differs) {
+                reportedLevel = ap.level;
+            }
+            return differs;
+        }
+
+        private static boolean equal(String a, String b) {
+            return a == null ? b == null : a.equals(b);
+        }
+
+    }
+
+}
@@ -0,0 +1,181 @@
+package com.zone24x7.wifi_settings;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * A filter and projection for listWifiNetworks, evaluated before the
+ * scan is encoded so the reply only grows with the matches.
+ * <p>
+ * All conditions are optional and combined with AND. The scan is walked
+ * once; with a limit only the strongest matches are kept in a heap of
+ * that size, so only the answer is ever sorted.
+ */
+final class ScanQuery {
+
+    static final String BAND_2_4_GHZ = "2.4";
+    static final String BAND_5_GHZ = "5";
+    static final String BAND_6_GHZ = "6";
+
+    // Fields a query may project to, "security" is an alias of
+    // "capabilities" for replies with the security mask.
+    static final Set<String> FIELDS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+            "ssid", "bssid", "capabilities", "security", "level", "frequency")));
+
+    private static final Comparator<AccessPoint> WEAKEST_FIRST = new Comparator<AccessPoint>() {
+        @Override
+        public int compare(AccessPoint a, AccessPoint b) {
+            return a.level == b.level ? 0 : (a.level < b.level ? -1 : 1);
+        }
+    };
+
+    private final String ssidPrefix;
+    private final Pattern ssidPattern;
+    private final Integer minLevel;
+    private final int minFrequency;
+    private final int maxFrequency;
+    private final int securityMask;
+    private final int limit;
+    // Null for every field.
+    final Set<String> fields;
+
+    private ScanQuery(String ssidPrefix, Pattern ssidPattern, Integer minLevel, int minFrequency, int maxFrequency,
+                      int securityMask, int limit, Set<String> fields) {
+        this.ssidPrefix = ssidPrefix;
+        this.ssidPattern = ssidPattern;
+        this.minLevel = minLevel;
+        this.minFrequency = minFrequency;
+        this.maxFrequency = maxFrequency;
+        this.securityMask = securityMask;
+        this.limit = limit;
+        this.fields = fields;
+    }
+
+    /**
+     * @param query {ssidPrefix, ssidRegex, minLevel, band, securityMask,
+     *              limit, fields} from the channel, every key optional
+     * @return the query, null if there is none
+     * @throws RuntimeException {@link EC#INVALID_QUERY} for an unknown band
+     *                          or field, or a regex that does not compile
+     */
+    static ScanQuery of(Map<String, Object> query) throws RuntimeException {
+
+        if (query == null) {
+            return null;
+        }
+
+        Pattern pattern = null;
+        String regex = (String) query.get("ssidRegex");
+        if (regex != null) {
+            try {
+                pattern = Pattern.compile(regex);
+            } catch (PatternSyntaxException e) {
+                throw new RuntimeException(EC.INVALID_QUERY.toString());
+            }
+        }
+
+        int minFrequency = 0;
+        int maxFrequency = Integer.MAX_VALUE;
+        String band = (String) query.get("band");
+        if (BAND_2_4_GHZ.equals(band)) {
+            minFrequency = 2400;
+            maxFrequency = 2500;
+        } else if (BAND_5_GHZ.equals(band)) {
+            minFrequency = 4900;
+            maxFrequency = 5924;
+        } else if (BAND_6_GHZ.equals(band)) {
+            minFrequency = 5925;
+            maxFrequency = 7125;
+        } else if (band != null) {
+            throw new RuntimeException(EC.INVALID_QUERY.toString());
+        }
+
+        Set<String> fields = null;
+        Object raw = query.get("fields");
+        if (raw instanceof List) {
+            fields = new HashSet<>();
+            for (Object field : (List<?>) raw) {
+                if (!FIELDS.contains(field)) {
+                    throw new RuntimeException(EC.INVALID_QUERY.toString());
+                }
+                fields.add(field.equals("security") ? "capabilities" : (String) field);
+            }
+        }
+
+        Number minLevel = (Number) query.get("minLevel");
+        Number securityMask = (Number) query.get("securityMask");
+        Number limit = (Number) query.get("limit");
+
+        return new ScanQuery((String) query.get("ssidPrefix"), pattern,
+                minLevel != null ? minLevel.intValue() : null, minFrequency, maxFrequency,
+                securityMask != null ? securityMask.intValue() : 0,
+                limit != null ? Math.max(0, limit.intValue()) : 0, fields);
+
+    }
+
+    /**
+     * @return the matches, in scan order, or strongest first with a limit
+     */
+    List<AccessPoint> apply(List<AccessPoint> scan) {
+
+        if (limit == 0) {
+            List<AccessPoint> matches = new ArrayList<>();
+            for (AccessPoint ap : scan) {
+                if (matches(ap)) {
+                    matches.add(ap);
+                }
+            }
+            return matches;
+        }
+
+        PriorityQueue<AccessPoint> strongest = new PriorityQueue<>(limit + 1, WEAKEST_FIRST);
+        for (AccessPoint ap : scan) {
+            if (strongest.size() == limit && ap.level <= strongest.peek().level) {
+                continue;
+            }
+            if (matches(ap)) {
+                strongest.add(ap);
+                if (strongest.size() > limit) {
+                    strongest.poll();
+                }
+            }
+        }
+
+        List<AccessPoint> matches = new ArrayList<>(strongest);
+        Collections.sort(matches, Collections.reverseOrder(WEAKEST_FIRST));
+        return matches;
+
+    }
+
+    // Helpers
+
+    /**
+     * Cheapest conditions first, the regex last.
+     */
+    private boolean matches(AccessPoint ap) {
+        if (minLevel != null && ap.level < minLevel) {
+            return false;
+        }
+        if (ap.frequency < minFrequency || ap.frequency > maxFrequency) {
+            return false;
+        }
+        if (securityMask != 0 && (Capabilities.of(ap) & securityMask) == 0) {
+            return false;
+        }
+        String ssid = ap.ssid == null ? "" : ap.ssid;
+        if (ssidPrefix != null && !ssid.startsWith(ssidPrefix)) {
+            return false;
+        }
+        return ssidPattern == null || ssidPattern.matcher(ssid).find();
+    }
+
+}
@@ -0,0 +1,211 @@
+package com.zone24x7.wifi_settings;
+
+import android.os.SystemClock;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.flutter.plugin.common.EventChannel;
+
+/**
+ * Pushes scan results to Dart whenever the system reports new ones,
+ * so the Dart side does not have to poll listWifiNetworks.
+ * <p>
+ * A {@link WifiBackend.Listener} is added when the first listener
+ * subscribes and removed when the last one leaves, which registers and
+ * unregisters the system receiver unless a scan is in flight. Scan
+ * completions are coalesced so that a burst of them results in at most
+ * one {@link WifiBackend#scanResults()} call and one event per interval.
+ * Every engine listens through its own {@link #streamHandler()}, and the
+ * results are encoded once per format asked for.
+ */
+class ScanResultsStream {
+
+    static final String CHANNEL = "wifi_settings/scan_results";
+
+    private static final long DEFAULT_INTERVAL_MILLIS = 1000;
+
+    private final WifiBackend backend;
+    private final MethodDispatcher dispatcher;
+
+    // Only touched from the main thread. Sink -> format.
+    private final Map<EventChannel.EventSink, String> sinks = new HashMap<>();
+    private boolean pending = false;
+    private long lastEmittedAt = 0;
+    private long intervalMillis = DEFAULT_INTERVAL_MILLIS;
+
+    private final WifiBackend.Listener listener = new WifiBackend.Listener() {
+        @Override
+        public void scanResultsChanged(boolean updated) {
+            // A failed scan re-delivers the old results, nothing new to emit.
+            if (updated) {
+                dispatcher.runOnMainThread(scheduleOnMainThread);
+            }
+        }
+    };
+
+    private final Runnable scheduleOnMainThread = new Runnable() {
+        @Override
+        public void run() {
+            if (!sinks.isEmpty()) {
+                schedule();
+            }
+        }
+    };
+
+    private final Runnable emit = new Runnable() {
+        @Override
+        public void run() {
+            pending = false;
+            lastEmittedAt = SystemClock.elapsedRealtime();
+            final Map<EventChannel.EventSink, String> targets = new HashMap<>(sinks);
+            boolean queued = dispatcher.execute(new Runnable() {
+                @Override
+                public void run() {
+                    publish(targets);
+                }
+            });
+            if (!queued) {
+                // The workers are saturated, the scan is not dropped silently.
+                for (EventChannel.EventSink sink : targets.keySet()) {
+                    sink.error(EC.DISPATCH_REJECTED.toString(), null, null);
+                }
+            }
+        }
+    };
+
+    ScanResultsStream(WifiBackend backend, MethodDispatcher dispatcher) {
+        this.backend = backend;
+        this.dispatcher = dispatcher;
+    }
+
+    /**
+     * @return a handler for the event channel of one engine
+     */
+    EventChannel.StreamHandler streamHandler() {
+        return new EventChannel.StreamHandler() {
+
+            private EventChannel.EventSink sink;
+
+            /**
+             * @param arguments optional {intervalMillis, format}
+             * @param events    {@link EventChannel.EventSink}
+             */
+            @Override
+            public void onListen(Object arguments, EventChannel.EventSink events) {
+                sink = events;
+                listen(arguments, events);
+            }
+
+            @Override
+            public void onCancel(Object arguments) {
+                if (sink != null) {
+                    cancel(sink);
+                    sink = null;
+                }
+            }
+
+        };
+    }
+
+    /**
+     * Drops every listener, on the main thread.
+     */
+    void dispose() {
+        if (!sinks.isEmpty()) {
+            sinks.clear();
+            stop();
+        }
+    }
+
+    // Helpers
+
+    private void listen(Object arguments, EventChannel.EventSink sink) {
+
+        String format = ScanEncoder.FORMAT_COLUMNAR;
+        if (arguments instanceof Map) {
+            Map<?, ?> args = (Map<?, ?>) arguments;
+            if (args.get("intervalMillis") instanceof Number) {
+                intervalMillis = Math.max(0, ((Number) args.get("intervalMillis")).longValue());
+            }
+            if (args.get("format") instanceof String) {
+                format = (String) args.get("format");
+            }
+        }
+
+        sinks.put(sink, format);
+        if (sinks.size() == 1) {
+            Trace.event(Trace.STREAM_LISTEN, CHANNEL, 1);
+            backend.addListener(listener);
+        }
+
+        // Give the new listener whatever the system has right now.
+        schedule();
+
+    }
+
+    private void cancel(EventChannel.EventSink sink) {
+        if (sinks.remove(sink) != null && sinks.isEmpty()) {
+            stop();
+        }
+    }
+
+    private void stop() {
+        Trace.event(Trace.STREAM_CANCEL, CHANNEL, 0);
+        backend.removeListener(listener);
+        dispatcher.cancelOnMainThread(emit);
+        pending = false;
+    }
+
+    private void schedule() {
+        if (pending) {
+            return;
+        }
+        pending = true;
+        long delay = lastEmittedAt + intervalMillis - SystemClock.elapsedRealtime();
+        dispatcher.runOnMainThreadDelayed(emit, Math.max(0, delay));
+    }
+
+    private void publish(final Map<EventChannel.EventSink, String> targets) {
+
+        final Map<EventChannel.EventSink, Object> events = new HashMap<>();
+        try {
+            List<AccessPoint> latest = backend.scanResults();
+            Map<String, Object> encoded = new HashMap<>();
+            for (Map.Entry<EventChannel.EventSink, String> target : targets.entrySet()) {
+                String format = target.getValue();
+                if (!encoded.containsKey(format)) {
+                    encoded.put(format, ScanEncoder.encode(latest, format));
+                }
+                events.put(target.getKey(), encoded.get(format));
+            }
+        } catch (final RuntimeException e) {
+            dispatcher.runOnMainThread(new Runnable() {
+                @Override
+                public void run() {
+                    for (EventChannel.EventSink sink : targets.keySet()) {
+                        if (sinks.containsKey(sink)) {
+                            sink.error(e.getMessage(), null, null);
+                        }
+                    }
+                }
+            });
+            return;
+        }
+
+        dispatcher.runOnMainThread(new Runnable() {
+            @Override
+            public void run() {
+                for (Map.Entry<EventChannel.EventSink, Object> event : events.entrySet()) {
+                    // Only those still listening.
+                    if (sinks.containsKey(event.getKey())) {
+                        event.getKey().success(event.getValue());
+                    }
+                }
+            }
+        });
+
+    }
+
+}
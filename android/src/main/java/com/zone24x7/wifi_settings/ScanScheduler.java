@@ -0,0 +1,260 @@
+package com.zone24x7.wifi_settings;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decides when a fresh scan is actually started.
+ * <p>
+ * Requests are served from the current scan results while those are
+ * younger than the caller's max age. Otherwise a scan is started, unless
+ * one is in flight already, in which case the request waits for that
+ * one. From Android P a foreground app may only start
+ * {@link #THROTTLE_SCANS} scans per {@link #THROTTLE_WINDOW_MILLIS}; the
+ * start times of the last scans are kept so that a request which would
+ * be throttled by the system is served from the current results right
+ * away instead of waiting for a scan that never comes.
+ * <p>
+ * Completed scans are reported by a {@link WifiBackend.Listener} that is
+ * only added while a scan is in flight. Scans the system or other apps
+ * run are noticed by the timestamps of the results before a new one is
+ * started. Time and the scan timeout come from a {@link Clock}, so the
+ * class has no Android dependencies and the simulator drives it as it is.
+ */
+class ScanScheduler {
+
+    interface Callback {
+
+        /**
+         * Runs where the backend reports scans or the clock runs delayed
+         * work, the main thread on a device, or on the calling thread
+         * when the request is answered right away.
+         *
+         * @param fresh     a scan completed for this request
+         * @param throttled no scan could be started, see {@link ScanScheduler}
+         */
+        void done(boolean fresh, boolean throttled);
+
+    }
+
+    /**
+     * SystemClock and the main looper on a device.
+     */
+    interface Clock {
+
+        /**
+         * @return milliseconds since boot, the time base of the scan result timestamps
+         */
+        long elapsedRealtime();
+
+        void postDelayed(Runnable runnable, long delayMillis);
+
+        void removeCallbacks(Runnable runnable);
+
+    }
+
+    static final int THROTTLE_SCANS = 4;
+    static final long THROTTLE_WINDOW_MILLIS = 2 * 60 * 1000;
+
+    private static final long SCAN_TIMEOUT_MILLIS = 10000;
+
+    private final WifiBackend backend;
+    private final Clock clock;
+    // Whether the system throttles scans, from Android P.
+    private final boolean throttles;
+
+    // Guarded by this.
+    private final long[] startedAt = new long[THROTTLE_SCANS];
+    private int oldest = 0;
+    private boolean inFlight = false;
+    private List<Callback> waiting = new ArrayList<>();
+    // When the current results came in, -1 for none.
+    private long resultsAt = -1;
+
+    private long requests;
+    private long cached;
+    private long coalesced;
+    private long started;
+    private long throttled;
+
+    private final WifiBackend.Listener listener = new WifiBackend.Listener() {
+        @Override
+        public void scanResultsChanged(boolean updated) {
+            if (updated) {
+                observe(clock.elapsedRealtime());
+            }
+            complete(updated, false);
+        }
+    };
+
+    private final Runnable timeout = new Runnable() {
+        @Override
+        public void run() {
+            complete(false, false);
+        }
+    };
+
+    ScanScheduler(WifiBackend backend, Clock clock, boolean throttles) {
+        this.backend = backend;
+        this.clock = clock;
+        this.throttles = throttles;
+    }
+
+    /**
+     * @param maxAgeMillis how old the current results may be to still be served
+     * @param callback     told once results that satisfy the request, or
+     *                     the best ones available, are in
+     */
+    void request(long maxAgeMillis, Callback callback) {
+
+        long now = clock.elapsedRealtime();
+        if (needsScan(now, maxAgeMillis)) {
+            // Outside the lock, it is a binder call.
+            observe(newestMillis(backend.scanResults()));
+        }
+
+        boolean fromCache = false;
+        boolean throttledNow = false;
+
+        synchronized (this) {
+            requests++;
+            if (resultsAt >= 0 && now - resultsAt <= maxAgeMillis) {
+                cached++;
+                fromCache = true;
+            } else if (inFlight) {
+                coalesced++;
+                waiting.add(callback);
+                return;
+            } else if (!hasBudget(now)) {
+                throttled++;
+                throttledNow = true;
+            } else {
+                started++;
+                inFlight = true;
+                waiting.add(callback);
+                // Under the lock, so that it cannot be removed by the
+                // completion of the previous scan.
+                backend.addListener(listener);
+                // 0 marks a slot that was never used.
+                startedAt[oldest] = Math.max(1, now);
+                oldest = (oldest + 1) % THROTTLE_SCANS;
+            }
+        }
+
+        if (fromCache || throttledNow) {
+            callback.done(false, throttledNow);
+            return;
+        }
+
+        Trace.event(Trace.SCAN_STARTED, null, maxAgeMillis);
+        clock.postDelayed(timeout, SCAN_TIMEOUT_MILLIS);
+        if (!backend.startScan()) {
+            // Refused by the system, most likely throttled by a scan
+            // some other component of the app started.
+            synchronized (this) {
+                throttled++;
+            }
+            complete(false, true);
+        }
+
+    }
+
+    /**
+     * @return milliseconds until a scan can be started without being throttled
+     */
+    synchronized long nextScanInMillis() {
+        if (!throttles || startedAt[oldest] == 0) {
+            return 0;
+        }
+        return Math.max(0, startedAt[oldest] + THROTTLE_WINDOW_MILLIS - clock.elapsedRealtime());
+    }
+
+    /**
+     * @return {requests, cached, coalesced, started, throttled, nextScanInMillis}
+     */
+    Map<String, Long> stats() {
+        Map<String, Long> m = new HashMap<>();
+        synchronized (this) {
+            m.put("requests", requests);
+            m.put("cached", cached);
+            m.put("coalesced", coalesced);
+            m.put("started", started);
+            m.put("throttled", throttled);
+        }
+        m.put("nextScanInMillis", nextScanInMillis());
+        return m;
+    }
+
+    void dispose() {
+        backend.removeListener(listener);
+        clock.removeCallbacks(timeout);
+    }
+
+    /**
+     * @return age of the newest result in milliseconds, -1 if there are none
+     */
+    long ageMillis(List<AccessPoint> results) {
+        long newest = newestMillis(results);
+        return newest < 0 ? -1 : Math.max(0, clock.elapsedRealtime() - newest);
+    }
+
+    // Helpers
+
+    /**
+     * @return true if the request cannot be served from the results known
+     * to be current and no scan is in flight, that is when the timestamps
+     * of the results the system has are worth a look
+     */
+    private synchronized boolean needsScan(long now, long maxAgeMillis) {
+        return !inFlight && (resultsAt < 0 || now - resultsAt > maxAgeMillis);
+    }
+
+    /**
+     * @param at time since boot results came in at, -1 for none
+     */
+    private synchronized void observe(long at) {
+        resultsAt = Math.max(resultsAt, at);
+    }
+
+    /**
+     * @return time since boot of the newest result in milliseconds, -1 if there are none
+     */
+    private static long newestMillis(List<AccessPoint> results) {
+        long newest = -1;
+        for (AccessPoint ap : results) {
+            // Timestamps are in microseconds since boot.
+            newest = Math.max(newest, ap.timestampMicros / 1000);
+        }
+        return newest;
+    }
+
+    private boolean hasBudget(long now) {
+        return !throttles
+                || startedAt[oldest] == 0
+                || now - startedAt[oldest] >= THROTTLE_WINDOW_MILLIS;
+    }
+
+    private void complete(boolean fresh, boolean throttled) {
+
+        List<Callback> done;
+        synchronized (this) {
+            if (!inFlight) {
+                // Some other app's scan, nobody is waiting.
+                return;
+            }
+            inFlight = false;
+            done = waiting;
+            waiting = new ArrayList<>();
+            backend.removeListener(listener);
+        }
+
+        clock.removeCallbacks(timeout);
+        for (Callback callback : done) {
+            callback.done(fresh, throttled);
+        }
+
+    }
+
+}
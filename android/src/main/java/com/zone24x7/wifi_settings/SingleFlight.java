@@ -0,0 +1,114 @@
+package com.zone24x7.wifi_settings;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import io.flutter.plugin.common.MethodChannel.Result;
+
+/**
+ * Collapses identical read calls that overlap in time. The first call
+ * for a key does the work, calls with the same key that arrive before
+ * it replies are answered with the same reply.
+ */
+class SingleFlight {
+
+    private final Map<String, FanOutResult> flights = new HashMap<>();
+
+    private long leaders;
+    private long joined;
+
+    /**
+     * @param key    method name and arguments of the call
+     * @param result {@link Result} of the call
+     * @return the {@link Result} the work has to answer, or null if the
+     * call joined one that is already running
+     */
+    Result join(final String key, Result result) {
+
+        synchronized (this) {
+            FanOutResult flight = flights.get(key);
+            if (flight != null && flight.add(result)) {
+                joined++;
+                return null;
+            }
+            leaders++;
+            flight = new FanOutResult(result) {
+                @Override
+                void finished() {
+                    leave(key, this);
+                }
+            };
+            flights.put(key, flight);
+            return flight;
+        }
+
+    }
+
+    /**
+     * @return {leaders, joined}
+     */
+    synchronized Map<String, Long> stats() {
+        Map<String, Long> m = new HashMap<>();
+        m.put("leaders", leaders);
+        m.put("joined", joined);
+        return m;
+    }
+
+    // Helpers
+
+    private synchronized void leave(String key, FanOutResult flight) {
+        if (flights.get(key) == flight) {
+            flights.remove(key);
+        }
+    }
+
+    /**
+     * @return the key identifying the call, equal for equal arguments
+     * whatever order the entries of their maps iterate in
+     */
+    static String key(String method, Object arguments) {
+        StringBuilder sb = new StringBuilder(method).append(':');
+        append(sb, arguments);
+        return sb.toString();
+    }
+
+    // Helpers
+
+    private static void append(StringBuilder sb, Object value) {
+
+        if (value instanceof Map) {
+            TreeMap<String, Object> sorted = new TreeMap<>();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                sorted.put(String.valueOf(entry.getKey()), entry.getValue());
+            }
+            sb.append('{');
+            boolean first = true;
+            for (Map.Entry<String, Object> entry : sorted.entrySet()) {
+                if (!first) {
+                    sb.append(", ");
+                }
+                first = false;
+                sb.append(entry.getKey()).append('=');
+                append(sb, entry.getValue());
+            }
+            sb.append('}');
+        } else if (value instanceof List) {
+            sb.append('[');
+            boolean first = true;
+            for (Object item : (List<?>) value) {
+                if (!first) {
+                    sb.append(", ");
+                }
+                first = false;
+                append(sb, item);
+            }
+            sb.append(']');
+        } else {
+            sb.append(value);
+        }
+
+    }
+
+}
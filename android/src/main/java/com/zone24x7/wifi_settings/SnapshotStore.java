@@ -0,0 +1,288 @@
+package com.zone24x7.wifi_settings;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps the latest scan and the SSIDs of the saved profiles in a small
+ * binary file, so that a freshly started process has something to show
+ * before its first scan completes.
+ * <p>
+ * The file is rewritten as a whole: encoded into one buffer, written to
+ * a temporary file through its channel and renamed over the old one, so
+ * a reader never sees half a snapshot. Reading maps the file and decodes
+ * it in place. A file that is truncated, of another version or fails its
+ * checksum is ignored.
+ * <p>
+ * Layout, little endian: magic, version, seenAtMillis, capability
+ * dictionary, access points (ssid, 6 byte BSSID, all zeros for none,
+ * capability index, level, frequency, timestamp), saved profiles (ssid,
+ * security class), CRC32 of everything before it. Strings are UTF-8
+ * with a short length.
+ */
+class SnapshotStore {
+
+    static class Snapshot {
+
+        // Wall clock time the newest access point was seen.
+        final long seenAtMillis;
+        final List<AccessPoint> scan;
+        // Plain SSID -> ConfiguredNetworks.SECURITY_* class.
+        final Map<String, Integer> known;
+
+        Snapshot(long seenAtMillis, List<AccessPoint> scan, Map<String, Integer> known) {
+            this.seenAtMillis = seenAtMillis;
+            this.scan = scan;
+            this.known = known;
+        }
+
+        /**
+         * @return milliseconds since the newest access point was seen
+         */
+        long ageMillis() {
+            return Math.max(0, System.currentTimeMillis() - seenAtMillis);
+        }
+
+    }
+
+    private static final int MAGIC = 0x57535331;
+    private static final int VERSION = 1;
+    private static final int BSSID_BYTES = 6;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File file;
+    private final File temporary;
+
+    /**
+     * @param file where the snapshot lives, its directory must exist
+     */
+    SnapshotStore(File file) {
+        this.file = file;
+        this.temporary = new File(file.getPath() + ".tmp");
+    }
+
+    /**
+     * @param seenAtMillis wall clock time the newest access point was seen
+     * @param scan         the scan to keep
+     * @param known        the saved profiles
+     * @throws IOException if the file could not be written or renamed
+     */
+    synchronized void write(long seenAtMillis, List<AccessPoint> scan, Collection<ConfiguredNetworks.Entry> known) throws IOException {
+
+        ByteBuffer buffer = encode(seenAtMillis, scan, known);
+
+        FileOutputStream out = new FileOutputStream(temporary);
+        try {
+            FileChannel channel = out.getChannel();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        } finally {
+            out.close();
+        }
+
+        if (!temporary.renameTo(file)) {
+            throw new IOException("Cannot replace " + file);
+        }
+
+    }
+
+    /**
+     * @return the last snapshot written, null if there is no usable one
+     */
+    synchronized Snapshot read() {
+
+        if (!file.exists()) {
+            return null;
+        }
+
+        try {
+            FileInputStream in = new FileInputStream(file);
+            try {
+                FileChannel channel = in.getChannel();
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                return decode(buffer);
+            } finally {
+                in.close();
+            }
+        } catch (IOException | RuntimeException e) {
+            // Unreadable or corrupt, the next scan rewrites it.
+            return null;
+        }
+
+    }
+
+    // Helpers
+
+    private static ByteBuffer encode(long seenAtMillis, List<AccessPoint> scan, Collection<ConfiguredNetworks.Entry> known) {
+
+        List<byte[]> capabilities = new ArrayList<>();
+        Map<String, Integer> capabilityIndex = new HashMap<>();
+        byte[][] ssids = new byte[scan.size()][];
+        int[] capability = new int[scan.size()];
+
+        // Sizes first, so the buffer is allocated once.
+        int size = 4 + 4 + 8 + 4;
+        for (int i = 0; i < scan.size(); i++) {
+            AccessPoint ap = scan.get(i);
+            String key = ap.capabilities == null ? "" : ap.capabilities;
+            Integer index = capabilityIndex.get(key);
+            if (index == null) {
+                index = capabilities.size();
+                capabilityIndex.put(key, index);
+                capabilities.add(key.getBytes(UTF_8));
+                size += 2 + capabilities.get(index).length;
+            }
+            capability[i] = index;
+            ssids[i] = (ap.ssid == null ? "" : ap.ssid).getBytes(UTF_8);
+            size += 2 + ssids[i].length + BSSID_BYTES + 2 + 1 + 2 + 8;
+        }
+
+        List<byte[]> knownSsids = new ArrayList<>(known.size());
+        size += 4 + 4;
+        for (ConfiguredNetworks.Entry entry : known) {
+            byte[] ssid = entry.ssid.getBytes(UTF_8);
+            knownSsids.add(ssid);
+            size += 2 + ssid.length + 1;
+        }
+        size += 4;
+
+        ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC).putInt(VERSION).putLong(seenAtMillis);
+
+        buffer.putInt(capabilities.size());
+        for (byte[] c : capabilities) {
+            putString(buffer, c);
+        }
+
+        buffer.putInt(scan.size());
+        byte[] bssid = new byte[BSSID_BYTES];
+        for (int i = 0; i < scan.size(); i++) {
+            AccessPoint ap = scan.get(i);
+            putString(buffer, ssids[i]);
+            ScanEncoder.packBssid(ap.bssid, bssid, 0);
+            buffer.put(bssid);
+            buffer.putShort((short) capability[i]);
+            buffer.put((byte) ap.level);
+            buffer.putShort((short) ap.frequency);
+            buffer.putLong(ap.timestampMicros);
+        }
+
+        buffer.putInt(known.size());
+        int k = 0;
+        for (ConfiguredNetworks.Entry entry : known) {
+            putString(buffer, knownSsids.get(k++));
+            buffer.put((byte) entry.security);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, buffer.position());
+        buffer.putInt((int) crc.getValue());
+
+        buffer.flip();
+        return buffer;
+
+    }
+
+    private static Snapshot decode(ByteBuffer buffer) {
+
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        int end = buffer.limit() - 4;
+        if (end < 16 || buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+            return null;
+        }
+
+        // In chunks, so the mapping is not copied as a whole.
+        CRC32 crc = new CRC32();
+        byte[] chunk = new byte[4096];
+        buffer.position(0);
+        while (buffer.position() < end) {
+            int n = Math.min(chunk.length, end - buffer.position());
+            buffer.get(chunk, 0, n);
+            crc.update(chunk, 0, n);
+        }
+        if (buffer.getInt(end) != (int) crc.getValue()) {
+            return null;
+        }
+        buffer.position(8);
+
+        long seenAtMillis = buffer.getLong();
+
+        String[] capabilities = new String[buffer.getInt()];
+        for (int i = 0; i < capabilities.length; i++) {
+            capabilities[i] = getString(buffer);
+        }
+
+        int count = buffer.getInt();
+        List<AccessPoint> scan = new ArrayList<>(count);
+        byte[] bssid = new byte[BSSID_BYTES];
+        for (int i = 0; i < count; i++) {
+            String ssid = getString(buffer);
+            buffer.get(bssid);
+            String capability = capabilities[buffer.getShort() & 0xffff];
+            int level = buffer.get();
+            int frequency = buffer.getShort() & 0xffff;
+            long timestampMicros = buffer.getLong();
+            scan.add(new AccessPoint(ssid, unpackBssid(bssid), capability, level, frequency, timestampMicros));
+        }
+
+        int knownCount = buffer.getInt();
+        Map<String, Integer> known = new LinkedHashMap<>(knownCount * 2);
+        for (int i = 0; i < knownCount; i++) {
+            String ssid = getString(buffer);
+            known.put(ssid, (int) buffer.get());
+        }
+
+        return new Snapshot(seenAtMillis, scan, known);
+
+    }
+
+    private static void putString(ByteBuffer buffer, byte[] utf8) {
+        buffer.putShort((short) utf8.length);
+        buffer.put(utf8);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        byte[] utf8 = new byte[buffer.getShort() & 0xffff];
+        buffer.get(utf8);
+        return new String(utf8, UTF_8);
+    }
+
+    /**
+     * @return the BSSID, null for all zeros
+     */
+    private static String unpackBssid(byte[] bssid) {
+        boolean none = true;
+        for (byte b : bssid) {
+            none &= b == 0;
+        }
+        if (none) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder(BSSID_BYTES * 3 - 1);
+        for (int i = 0; i < BSSID_BYTES; i++) {
+            if (i > 0) {
+                sb.append(':');
+            }
+            sb.append(Character.forDigit((bssid[i] >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(bssid[i] & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+}
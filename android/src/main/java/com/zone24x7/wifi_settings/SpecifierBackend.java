@@ -0,0 +1,344 @@
+package com.zone24x7.wifi_settings;
+
+import android.annotation.TargetApi;
+import android.net.ConnectivityManager;
+import android.net.MacAddress;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkRequest;
+import android.net.wifi.WifiEnterpriseConfig;
+import android.net.wifi.WifiNetworkSpecifier;
+import android.os.Build;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link ConnectionBackend} for Android Q and later. The network is
+ * described with a WifiNetworkSpecifier and requested through
+ * ConnectivityManager, which reports completion with callbacks instead
+ * of broadcasts and does not touch the saved profiles or force a
+ * supplicant reconnect.
+ * <p>
+ * The network only stays up while its request is registered, so the
+ * last request is kept until {@link #releaseActive(ConnectivityManager)}
+ * or the next request replaces it. Unless the caller asks for it the
+ * request wants a network with internet access and the process is not
+ * bound to it, see {@link ConnectRequest#withSpecifierOptions}.
+ */
+@TargetApi(Build.VERSION_CODES.Q)
+class SpecifierBackend implements ConnectionBackend {
+
+    private static final Object lock = new Object();
+    private static Request active;
+
+    private static class Staged extends StagedNetwork {
+
+        final NetworkRequest networkRequest;
+
+        Staged(ConnectRequest request, String bssid, NetworkRequest networkRequest) {
+            super(request, SPECIFIER, -1, false, bssid);
+            this.networkRequest = networkRequest;
+        }
+
+    }
+
+    private final ConnectivityManager connectivityManager;
+    private final NetworkIndex index;
+    private final Metrics metrics;
+
+    SpecifierBackend(ConnectivityManager connectivityManager, NetworkIndex index, Metrics metrics) {
+        this.connectivityManager = connectivityManager;
+        this.index = index;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Unregisters the request kept for the last connection, which lets
+     * the system tear the network down, and unbinds the process from it.
+     */
+    static void releaseActive(ConnectivityManager connectivityManager) {
+        synchronized (lock) {
+            if (active != null) {
+                unregister(connectivityManager, active);
+                active = null;
+            }
+        }
+    }
+
+    @Override
+    public boolean connect(ConnectRequest request) {
+
+        try {
+            attempt(request);
+            return true;
+        } catch (RuntimeException e) {
+            Trace.event(Trace.CONNECT_FAILED, e.getMessage());
+            return false;
+        }
+
+    }
+
+    @Override
+    public void attempt(ConnectRequest request) throws RuntimeException {
+        activate(stage(request));
+    }
+
+    @Override
+    public Map<String, Object> attemptAndAwait(ConnectRequest request, long timeoutMillis) throws RuntimeException {
+        return activateAndAwait(stage(request), timeoutMillis);
+    }
+
+    /**
+     * Resolves the specifier from the scan and builds the network
+     * request. Nothing is saved, a specifier leaves no profile behind.
+     */
+    @Override
+    public StagedNetwork stage(ConnectRequest request) throws RuntimeException {
+
+        long t = Metrics.start();
+        AccessPoint result = index.scanResult(request.ssid);
+        metrics.record(Metrics.Phase.SCAN_LOOKUP, t);
+        String bssid = request.pinBssid && result != null ? result.bssid : null;
+
+        NetworkRequest.Builder builder = new NetworkRequest.Builder()
+                .addTransportType(NetworkCapabilities.TRANSPORT_WIFI)
+                .setNetworkSpecifier(specifier(request, result, bssid));
+        if (request.localOnly) {
+            builder.removeCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET);
+        }
+        return new Staged(request, bssid, builder.build());
+
+    }
+
+    @Override
+    public void activate(StagedNetwork staged) throws RuntimeException {
+        request(staged, 0);
+    }
+
+    /**
+     * The request is given the timeout as well, so the system gives up
+     * and calls onUnavailable at the same time as we stop waiting.
+     */
+    @Override
+    public Map<String, Object> activateAndAwait(StagedNetwork staged, long timeoutMillis) throws RuntimeException {
+
+        long t = Metrics.start();
+        ConnectRequest connectRequest = staged.request;
+        Request request = request(staged, timeoutMillis);
+
+        boolean done;
+        try {
+            done = request.latch.await(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            done = false;
+        }
+
+        if (!done || request.network == null) {
+            release(request);
+            Trace.event(Trace.ASSOCIATION_TIMEOUT, connectRequest.ssid, timeoutMillis);
+            throw new RuntimeException(EC.ASSOCIATION_TIMEOUT.toString());
+        }
+
+        // onAvailable only comes once the network is provisioned, so
+        // association and IP are reported together.
+        long micros = (request.availableAt - request.requestedAt) / 1000;
+        metrics.recordMicros(Metrics.Phase.ASSOCIATE, micros);
+        metrics.record(Metrics.Phase.SPECIFIER_CONNECT, t);
+
+        Map<String, Object> m = new HashMap<>();
+        m.put("connected", true);
+        m.put("backend", SPECIFIER);
+        m.put("timeToAssociateMillis", micros / 1000);
+        m.put("timeToIpMillis", micros / 1000);
+        return m;
+
+    }
+
+    // Helpers
+
+    private Request request(StagedNetwork staged, long timeoutMillis) throws RuntimeException {
+
+        String ssid = staged.request.ssid;
+        Trace.event(Trace.CONNECT_ATTEMPT, ssid);
+        if (!(staged instanceof Staged)) {
+            // Staged by the legacy backend.
+            throw new RuntimeException(EC.NETWORK_NOT_STAGED.toString());
+        }
+        NetworkRequest networkRequest = ((Staged) staged).networkRequest;
+
+        Request request = new Request(ssid, staged.request.bindProcess);
+        synchronized (lock) {
+
+            // Only one specifier request is served at a time, the new
+            // one replaces whatever was kept before.
+            if (active != null) {
+                unregister(connectivityManager, active);
+                active = null;
+            }
+
+            // Registered under the lock, so a concurrent release never
+            // sees a request that is not registered yet, and only kept
+            // once the system took it.
+            long t = Metrics.start();
+            try {
+                if (timeoutMillis > 0) {
+                    connectivityManager.requestNetwork(networkRequest, request, (int) Math.min(timeoutMillis, Integer.MAX_VALUE));
+                } else {
+                    connectivityManager.requestNetwork(networkRequest, request);
+                }
+            } catch (RuntimeException e) {
+                Trace.event(Trace.CONNECT_FAILED, e.getMessage());
+                throw new RuntimeException(EC.WIFI_MANAGER_ERROR.toString());
+            }
+            metrics.record(Metrics.Phase.REQUEST_NETWORK, t);
+            active = request;
+
+        }
+        Trace.event(Trace.NETWORK_REQUESTED, ssid, timeoutMillis);
+
+        return request;
+
+    }
+
+    private void release(Request request) {
+        synchronized (lock) {
+            if (active == request) {
+                unregister(connectivityManager, request);
+                active = null;
+            }
+        }
+    }
+
+    /**
+     * Unregisters the request unless the system already dropped it and
+     * undoes its process binding. Called with the lock held.
+     */
+    private static void unregister(ConnectivityManager connectivityManager, Request request) {
+        if (request.bound) {
+            connectivityManager.bindProcessToNetwork(null);
+            request.bound = false;
+        }
+        if (request.finished) {
+            return;
+        }
+        request.finished = true;
+        try {
+            connectivityManager.unregisterNetworkCallback(request);
+        } catch (IllegalArgumentException e) {
+            // Dropped by the system before onUnavailable reached us.
+        }
+    }
+
+    /**
+     * Picks the specifier security from the scan result, like the legacy
+     * backend does. A network that is not in the scan results is assumed
+     * to be WPA2 personal, or open without a password, and the system
+     * scans for it itself.
+     */
+    private WifiNetworkSpecifier specifier(ConnectRequest request, AccessPoint result, String bssid) throws RuntimeException {
+
+        String password = request.password;
+        int mask;
+        if (result != null) {
+            mask = Capabilities.of(result);
+        } else {
+            mask = password.isEmpty() ? 0 : Capabilities.PSK;
+        }
+
+        int security = Profile.security(mask);
+        if (security == Profile.WEP) {
+            // WifiNetworkSpecifier has no WEP support.
+            throw new RuntimeException(EC.UNSUPPORTED_SECURITY.toString());
+        }
+        // A specifier only takes passphrases, no raw keys.
+        Credentials.check(security, request, false);
+
+        WifiNetworkSpecifier.Builder builder = new WifiNetworkSpecifier.Builder().setSsid(request.ssid);
+        if (bssid != null) {
+            builder.setBssid(MacAddress.fromString(bssid));
+        }
+        if ((mask & Capabilities.EAP) != 0 && (mask & Capabilities.PSK) == 0) {
+            WifiEnterpriseConfig enterprise = new WifiEnterpriseConfig();
+            enterprise.setIdentity(request.identity);
+            enterprise.setPassword(password);
+            enterprise.setEapMethod(WifiEnterpriseConfig.Eap.PEAP);
+            enterprise.setPhase2Method(WifiEnterpriseConfig.Phase2.MSCHAPV2);
+            builder.setWpa2EnterpriseConfig(enterprise);
+        } else if ((mask & Capabilities.SAE) != 0 && (mask & Capabilities.PSK) == 0) {
+            builder.setWpa3Passphrase(password);
+        } else if ((mask & Capabilities.OWE) != 0) {
+            builder.setIsEnhancedOpen(true);
+        } else if ((mask & (Capabilities.PSK | Capabilities.WPA | Capabilities.WPA2)) != 0) {
+            builder.setWpa2Passphrase(password);
+        }
+
+        return builder.build();
+
+    }
+
+    private class Request extends ConnectivityManager.NetworkCallback {
+
+        private final String ssid;
+        private final boolean bindProcess;
+        private final CountDownLatch latch = new CountDownLatch(1);
+        private final long requestedAt = System.nanoTime();
+        private volatile long availableAt;
+        private volatile Network network;
+
+        // Guarded by lock.
+        private boolean bound = false;
+        // Unregistered, or dropped by the system. Guarded by lock.
+        private boolean finished = false;
+
+        Request(String ssid, boolean bindProcess) {
+            this.ssid = ssid;
+            this.bindProcess = bindProcess;
+        }
+
+        @Override
+        public void onAvailable(Network network) {
+            if (bindProcess) {
+                synchronized (lock) {
+                    if (active == this) {
+                        connectivityManager.bindProcessToNetwork(network);
+                        bound = true;
+                    }
+                }
+            }
+            this.availableAt = System.nanoTime();
+            this.network = network;
+            Trace.event(Trace.NETWORK_AVAILABLE, ssid);
+            latch.countDown();
+        }
+
+        @Override
+        public void onUnavailable() {
+            // The system drops the request itself, it must not be
+            // unregistered again.
+            synchronized (lock) {
+                finished = true;
+                if (active == this) {
+                    active = null;
+                }
+            }
+            Trace.event(Trace.NETWORK_UNAVAILABLE, ssid);
+            latch.countDown();
+        }
+
+        @Override
+        public void onLost(Network network) {
+            synchronized (lock) {
+                if (bound) {
+                    connectivityManager.bindProcessToNetwork(null);
+                    bound = false;
+                }
+            }
+        }
+
+    }
+
+}
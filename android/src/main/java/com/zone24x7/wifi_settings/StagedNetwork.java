@@ -0,0 +1,28 @@
+package com.zone24x7.wifi_settings;
+
+/**
+ * A connect prepared ahead of time by
+ * {@link ConnectionBackend#stage(ConnectRequest)}: the security and the
+ * BSSID are resolved and the profile is saved, so that activating it
+ * later only has to switch. Backends that prepare more extend it.
+ */
+class StagedNetwork {
+
+    final ConnectRequest request;
+    // ConnectionBackend.LEGACY or SPECIFIER, the backend to activate it with.
+    final String backend;
+    // Saved profile to enable, -1 if the backend saves none.
+    final int networkId;
+    final boolean preConfigured;
+    // BSSID the connect is pinned to, null for none.
+    final String bssid;
+
+    StagedNetwork(ConnectRequest request, String backend, int networkId, boolean preConfigured, String bssid) {
+        this.request = request;
+        this.backend = backend;
+        this.networkId = networkId;
+        this.preConfigured = preConfigured;
+        this.bssid = bssid;
+    }
+
+}
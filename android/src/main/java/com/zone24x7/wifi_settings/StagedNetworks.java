@@ -0,0 +1,53 @@
+package com.zone24x7.wifi_settings;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The networks staged by the caller, by handle. A handle is used up by
+ * its activation. Only the latest {@link #CAPACITY} are kept, staging
+ * more drops the oldest.
+ */
+class StagedNetworks {
+
+    static final int CAPACITY = 16;
+
+    // Guarded by this.
+    private int next = 1;
+    private final Map<Integer, StagedNetwork> staged = new LinkedHashMap<Integer, StagedNetwork>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, StagedNetwork> eldest) {
+            return size() > CAPACITY;
+        }
+    };
+
+    /**
+     * @return the handle of the staged network
+     */
+    synchronized int put(StagedNetwork network) {
+        int handle = next++;
+        staged.put(handle, network);
+        return handle;
+    }
+
+    /**
+     * @return the staged network, which is forgotten
+     * @throws RuntimeException {@link EC#NETWORK_NOT_STAGED} for an unknown,
+     *                          used or dropped handle
+     */
+    synchronized StagedNetwork take(int handle) throws RuntimeException {
+        StagedNetwork network = staged.remove(handle);
+        if (network == null) {
+            throw new RuntimeException(EC.NETWORK_NOT_STAGED.toString());
+        }
+        return network;
+    }
+
+    /**
+     * @return false if there was no such handle
+     */
+    synchronized boolean discard(int handle) {
+        return staged.remove(handle) != null;
+    }
+
+}
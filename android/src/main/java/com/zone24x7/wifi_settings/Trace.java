@@ -0,0 +1,240 @@
+package com.zone24x7.wifi_settings;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * In-memory trace of what the plugin did, replacing string building
+ * Log.d calls.
+ * <p>
+ * Events are typed: an event id, a timestamp, two primitive arguments
+ * and a reference to an object that already exists (usually the SSID
+ * string), written into a fixed size ring buffer. Writers claim a slot
+ * with a single atomic increment and allocate nothing. A slot works like
+ * a seqlock: its sequence is cleared, the fields are written with
+ * ordered stores and the sequence is set again, so a reader that sees
+ * the same sequence before and after copying an entry has a consistent
+ * copy. Entries overwritten meanwhile are skipped, so a dump may miss
+ * events while writers are busy but never mixes two of them. Events
+ * above the runtime verbosity are dropped before touching the buffer.
+ * At {@link #DEBUG} events are also handed to the {@link Mirror},
+ * logcat in debug builds of an app.
+ */
+final class Trace {
+
+    static final int OFF = 0;
+    static final int ERROR = 1;
+    static final int INFO = 2;
+    static final int DEBUG = 3;
+
+    // Event ids, indexes into NAMES and LEVELS.
+    static final int CONNECT_ATTEMPT = 0;
+    static final int CONNECT_FAILED = 1;
+    static final int PRE_CONFIGURED = 2;
+    static final int NOT_VISIBLE = 3;
+    static final int ENABLE_FAILED = 4;
+    static final int ENABLED = 5;
+    static final int RECONNECT_FAILED = 6;
+    static final int METHOD_CALL = 7;
+    static final int SCAN_RESULTS = 8;
+    static final int CANDIDATE_FAILED = 9;
+    static final int AUTHENTICATION_FAILED = 10;
+    static final int ASSOCIATION_TIMEOUT = 11;
+    static final int PERMISSIONS_REQUESTED = 12;
+    static final int PERMISSIONS_RESULT = 13;
+    static final int WIFI_ENABLING = 14;
+    static final int STREAM_LISTEN = 15;
+    static final int STREAM_CANCEL = 16;
+    static final int NETWORK_REQUESTED = 17;
+    static final int NETWORK_AVAILABLE = 18;
+    static final int NETWORK_UNAVAILABLE = 19;
+    static final int PROFILE_UPDATED = 20;
+    static final int PROFILES_REMOVED = 21;
+    static final int SCAN_STARTED = 22;
+    static final int CONNECT_SUPERSEDED = 23;
+    static final int SNAPSHOT_SERVED = 24;
+    static final int SNAPSHOT_FAILED = 25;
+    static final int LINK_MONITOR = 26;
+    static final int CONNECT_RETRY = 27;
+    static final int NETWORK_STAGED = 28;
+
+    private static final String[] NAMES = {
+            "CONNECT_ATTEMPT",
+            "CONNECT_FAILED",
+            "PRE_CONFIGURED",
+            "NOT_VISIBLE",
+            "ENABLE_FAILED",
+            "ENABLED",
+            "RECONNECT_FAILED",
+            "METHOD_CALL",
+            "SCAN_RESULTS",
+            "CANDIDATE_FAILED",
+            "AUTHENTICATION_FAILED",
+            "ASSOCIATION_TIMEOUT",
+            "PERMISSIONS_REQUESTED",
+            "PERMISSIONS_RESULT",
+            "WIFI_ENABLING",
+            "STREAM_LISTEN",
+            "STREAM_CANCEL",
+            "NETWORK_REQUESTED",
+            "NETWORK_AVAILABLE",
+            "NETWORK_UNAVAILABLE",
+            "PROFILE_UPDATED",
+            "PROFILES_REMOVED",
+            "SCAN_STARTED",
+            "CONNECT_SUPERSEDED",
+            "SNAPSHOT_SERVED",
+            "SNAPSHOT_FAILED",
+            "LINK_MONITOR",
+            "CONNECT_RETRY",
+            "NETWORK_STAGED",
+    };
+
+    private static final int[] LEVELS = {
+            INFO,
+            ERROR,
+            DEBUG,
+            INFO,
+            ERROR,
+            DEBUG,
+            ERROR,
+            DEBUG,
+            DEBUG,
+            INFO,
+            ERROR,
+            ERROR,
+            INFO,
+            INFO,
+            INFO,
+            DEBUG,
+            DEBUG,
+            INFO,
+            INFO,
+            ERROR,
+            INFO,
+            INFO,
+            DEBUG,
+            INFO,
+            INFO,
+            ERROR,
+            INFO,
+            INFO,
+            INFO,
+    };
+
+    private static final int CAPACITY = 1024;
+    private static final int MASK = CAPACITY - 1;
+
+    private static final AtomicLong cursor = new AtomicLong();
+    // Per slot: 0 while being written, otherwise the event number + 1.
+    private static final AtomicLongArray sequence = new AtomicLongArray(CAPACITY);
+    private static final AtomicLongArray times = new AtomicLongArray(CAPACITY);
+    private static final AtomicIntegerArray ids = new AtomicIntegerArray(CAPACITY);
+    private static final AtomicLongArray firstArgs = new AtomicLongArray(CAPACITY);
+    private static final AtomicLongArray secondArgs = new AtomicLongArray(CAPACITY);
+    private static final AtomicReferenceArray<Object> refs = new AtomicReferenceArray<>(CAPACITY);
+
+    /**
+     * Where {@link #DEBUG} events are echoed to as they happen.
+     */
+    interface Mirror {
+        void log(String line);
+    }
+
+    private static volatile int level = INFO;
+    private static volatile Mirror mirror;
+
+    private Trace() {
+    }
+
+    static void event(int id, Object ref) {
+        event(id, ref, 0, 0);
+    }
+
+    static void event(int id, Object ref, long a) {
+        event(id, ref, a, 0);
+    }
+
+    static void event(int id, Object ref, long a, long b) {
+
+        if (LEVELS[id] > level) {
+            return;
+        }
+
+        long n = cursor.getAndIncrement();
+        int slot = (int) (n & MASK);
+
+        // The ordered stores cannot move ahead of clearing the sequence,
+        // and setting it again cannot move ahead of them.
+        sequence.set(slot, 0);
+        times.lazySet(slot, System.nanoTime());
+        ids.lazySet(slot, id);
+        firstArgs.lazySet(slot, a);
+        secondArgs.lazySet(slot, b);
+        refs.lazySet(slot, ref);
+        sequence.set(slot, n + 1);
+
+        Mirror m = mirror;
+        if (level >= DEBUG && m != null) {
+            m.log(NAMES[id] + " " + ref + " " + a + " " + b);
+        }
+
+    }
+
+    static void setLevel(int level) {
+        Trace.level = Math.max(OFF, Math.min(DEBUG, level));
+    }
+
+    static void setMirror(Mirror mirror) {
+        Trace.mirror = mirror;
+    }
+
+    /**
+     * Copies the events still in the ring buffer, oldest first.
+     *
+     * @return list of {seq, event, ref, a, b, ageMicros}
+     */
+    static List<Map<String, Object>> dump() {
+
+        long now = System.nanoTime();
+        long end = cursor.get();
+        long start = Math.max(0, end - CAPACITY);
+        List<Map<String, Object>> events = new ArrayList<>((int) (end - start));
+
+        for (long n = start; n < end; n++) {
+
+            int slot = (int) (n & MASK);
+            if (sequence.get(slot) != n + 1) {
+                continue;
+            }
+            long time = times.get(slot);
+            int id = ids.get(slot);
+            long a = firstArgs.get(slot);
+            long b = secondArgs.get(slot);
+            Object ref = refs.get(slot);
+            if (sequence.get(slot) != n + 1) {
+                continue;
+            }
+
+            Map<String, Object> m = new HashMap<>();
+            m.put("seq", n);
+            m.put("event", NAMES[id]);
+            m.put("ref", ref == null ? null : ref.toString());
+            m.put("a", a);
+            m.put("b", b);
+            m.put("ageMicros", (now - time) / 1000);
+            events.add(m);
+
+        }
+
+        return events;
+
+    }
+
+}
@@ -1,69 +1,115 @@
 package com.zone24x7.wifi_settings;
 
-import android.net.wifi.ScanResult;
-import android.net.wifi.WifiConfiguration;
-import android.net.wifi.WifiManager;
-import android.util.Log;
-
-import java.util.List;
+import java.util.Map;
+
+/**
+ * The legacy {@link ConnectionBackend}: saves a profile for the network
+ * (unless it is already configured) and then enables it and reconnects.
+ * Everything platform specific goes through the {@link WifiBackend}.
+ */
+class WiFiConnector implements ConnectionBackend {
+
+    private final WifiBackend backend;
+    private final NetworkIndex index;
+    private final ConfiguredNetworks configuredNetworks;
+    private final ProfileReconciler reconciler;
+    private final Metrics metrics;
+
+    WiFiConnector(WifiBackend backend, NetworkIndex index,
+                  ConfiguredNetworks configuredNetworks, ProfileReconciler reconciler, Metrics metrics) {
+        this.backend = backend;
+        this.index = index;
+        this.configuredNetworks = configuredNetworks;
+        this.reconciler = reconciler;
+        this.metrics = metrics;
+    }
 
-class WiFiConnector {
+    @Override
+    public boolean connect(ConnectRequest request) {
 
-    private WifiManager manager;
-    private String ssid;
-    private String password;
+        try {
+            attempt(request);
+            return true;
+        } catch (RuntimeException e) {
+            Trace.event(Trace.CONNECT_FAILED, e.getMessage());
+            return false;
+        }
 
-    WiFiConnector(WifiManager manager) {
-        this.manager = manager;
     }
 
-    void setCredentials(String _ssid, String _password) throws Exception {
-        if (_ssid == null || _ssid.equals("")) {
-            throw new Exception(EC.SSID_IS_NULL_OR_EMPTY.toString());
-        }
-        if (_password == null) {
-            _password = "";
-        }
-        this.ssid = _ssid;
-        this.password = _password;
+    @Override
+    public Map<String, Object> attemptAndAwait(ConnectRequest request, long timeoutMillis) throws RuntimeException {
+        return await(request, null, timeoutMillis);
     }
 
-    boolean connect() {
+    @Override
+    public void attempt(ConnectRequest request) throws RuntimeException {
+        enableAndReconnect(stage(request));
+    }
 
+    /**
+     * Only enables the staged profile and reconnects. If it cannot be
+     * enabled (it may have been removed since) it is staged once more.
+     */
+    @Override
+    public void activate(StagedNetwork staged) throws RuntimeException {
         try {
-
-            log("Trying to connect to wifi...");
-            // Check if the ssid is already known by the device.
-            WifiConfiguration conf = this.checkIfPreConfigured();
-            if (conf != null) {
-                log("This network was pre-configured. Trying to connect now...");
-                tryWithConfig(conf, true);
-                return true;
+            enableAndReconnect(staged);
+        } catch (RuntimeException e) {
+            if (!EC.FAILED_TO_ENABLE_NETWORK.toString().equals(e.getMessage())) {
+                throw e;
             }
+            enableAndReconnect(stage(staged.request));
+        }
+    }
 
-            // This a new network that we are dealing with
-            ScanResult result = this.getLatestScanResult();
-            if (result == null) {
-                log("Couldn't reach the network");
-                throw new RuntimeException(EC.NETWORK_NOT_VISIBLE.toString());
-            }
+    @Override
+    public Map<String, Object> activateAndAwait(StagedNetwork staged, long timeoutMillis) throws RuntimeException {
+        return await(staged.request, staged, timeoutMillis);
+    }
 
-            // Everything as expected. We can try to identify the
-            // security protocols of the network and connect
-            if (result.capabilities.toUpperCase().contains("WEP")) {
-                tryWithConfig(this.wepNetworkConf(), false);
-            } else if (result.capabilities.toUpperCase().contains("WPA")) {
-                tryWithConfig(this.wpaNetworkConf(), false);
-            } else {
-                tryWithConfig(this.openNetworkConf(), false);
+    @Override
+    public StagedNetwork stage(ConnectRequest request) throws RuntimeException {
+
+        String ssid = request.ssid;
+        Trace.event(Trace.CONNECT_ATTEMPT, ssid);
+        // Check if the ssid is already known by the device. A saved
+        // profile is used as is unless its security or the credentials
+        // changed, then it is rewritten in place below. A request for a
+        // fresh profile always rewrites it.
+        ConfiguredNetworks.Entry configured = this.checkIfPreConfigured(ssid);
+        AccessPoint result = this.getLatestScanResult(ssid);
+        String bssid = request.pinBssid && result != null ? result.bssid : null;
+        if (configured != null && !request.freshProfile
+                && (result == null || !reconciler.isOutdated(configured, Capabilities.of(result), request.password, bssid))) {
+            // Without a password the saved credentials are used as they
+            // are, the ones given are checked even though nothing is
+            // written.
+            if (!request.password.isEmpty()) {
+                Credentials.check(result != null ? Profile.security(Capabilities.of(result)) : Profile.security(configured),
+                        request, true);
             }
+            Trace.event(Trace.PRE_CONFIGURED, ssid, configured.networkId);
+            return new StagedNetwork(request, LEGACY, configured.networkId, true, bssid);
+        }
 
-            return true;
+        // This a new (or outdated) network that we are dealing with
+        if (result == null) {
+            Trace.event(Trace.NOT_VISIBLE, ssid);
+            throw new RuntimeException(EC.NETWORK_NOT_VISIBLE.toString());
+        }
 
-        } catch (RuntimeException e) {
-            log("Exception: " + e.getMessage());
-            return false;
+        // Everything as expected. We can try to identify the
+        // security protocols of the network and connect
+        int security = Profile.security(Capabilities.of(result));
+        Credentials.check(security, request, true);
+        int networkId = reconciler.save(new Profile(request, security, bssid));
+        if (networkId == -1) {
+            // Nothing that could be enabled.
+            Trace.event(Trace.ENABLE_FAILED, ssid, networkId, 0);
+            throw new RuntimeException(EC.FAILED_TO_ENABLE_NETWORK.toString());
         }
+        return new StagedNetwork(request, LEGACY, networkId, false, bssid);
 
     }
 
@@ -73,24 +119,13 @@ class WiFiConnector {
      * is not visible or reachable no point of connecting
      * to that network.
      *
-     * @return ScanResult
+     * @return the best AccessPoint of the ssid
      */
-    private ScanResult getLatestScanResult() {
-
-        List<ScanResult> latest = manager().getScanResults();
-        log("Scan Results size: " + latest.size());
-        ScanResult matchingScanResult = null;
-
-        for (ScanResult sc : latest) {
-            log("- Comparing " + sc.SSID + " with " + ssid);
-            if (sc.SSID.equals(ssid)) {
-                matchingScanResult = sc;
-                break;
-            }
-        }
-
-        return matchingScanResult;
-
+    private AccessPoint getLatestScanResult(String ssid) {
+        long t = Metrics.start();
+        AccessPoint result = index.scanResult(ssid);
+        metrics.record(Metrics.Phase.SCAN_LOOKUP, t);
+        return result;
     }
 
     /**
@@ -98,150 +133,72 @@ class WiFiConnector {
      * in the configuration list. If so no need to create
      * and add configuration for the defaults list.
      *
-     * @return WifiConfiguration
+     * @return ConfiguredNetworks.Entry
      */
-    private WifiConfiguration checkIfPreConfigured() {
-
-        WifiConfiguration foundConfig = null;
-        List<WifiConfiguration> list = manager().getConfiguredNetworks();
-
-        for (WifiConfiguration configuration : list) {
-            if (configuration.SSID != null && configuration.SSID.equals(inDoubleQuotes(ssid))) {
-                foundConfig = configuration;
-                break;
-            }
-        }
-
-        return foundConfig;
-
+    private ConfiguredNetworks.Entry checkIfPreConfigured(String ssid) {
+        long t = Metrics.start();
+        ConfiguredNetworks.Entry entry = configuredNetworks.get(ssid);
+        metrics.record(Metrics.Phase.CONFIGURED_LOOKUP, t);
+        return entry;
     }
 
-    /**
-     * For networks using WEP protocol with RC4 stream cipher
-     * with 64bit or 128bit keys.
-     *
-     * @return WifiConfiguration
-     */
-    private WifiConfiguration wepNetworkConf() {
-
-        WifiConfiguration conf = new WifiConfiguration();
-        conf.SSID = inDoubleQuotes(ssid);
-        conf.status = WifiConfiguration.Status.ENABLED;
-
-        conf.allowedKeyManagement.set(WifiConfiguration.KeyMgmt.NONE);
-        conf.allowedProtocols.set(WifiConfiguration.Protocol.RSN);
-        conf.allowedProtocols.set(WifiConfiguration.Protocol.WPA);
-        conf.allowedAuthAlgorithms.set(WifiConfiguration.AuthAlgorithm.OPEN);
-        conf.allowedAuthAlgorithms.set(WifiConfiguration.AuthAlgorithm.SHARED);
-        conf.allowedPairwiseCiphers.set(WifiConfiguration.PairwiseCipher.CCMP);
-        conf.allowedPairwiseCiphers.set(WifiConfiguration.PairwiseCipher.TKIP);
-        conf.allowedGroupCiphers.set(WifiConfiguration.GroupCipher.WEP40);
-        conf.allowedGroupCiphers.set(WifiConfiguration.GroupCipher.WEP104);
-
-        if (password.matches("^[0-9a-fA-F]+$")) {
-            conf.wepKeys[0] = password;
-        } else {
-            conf.wepKeys[0] = inDoubleQuotes(password);
-        }
-
-        return conf;
-    }
-
-    /**
-     * For networks using WPA/WPA2 protocol with RC4 stream cipher
-     * with 256bit keys.
-     *
-     * @return WifiConfiguration
-     */
-    private WifiConfiguration wpaNetworkConf() {
-
-        WifiConfiguration conf = new WifiConfiguration();
-        conf.SSID = inDoubleQuotes(ssid);
-        conf.status = WifiConfiguration.Status.ENABLED;
-
-        conf.allowedProtocols.set(WifiConfiguration.Protocol.RSN);
-        conf.allowedProtocols.set(WifiConfiguration.Protocol.WPA);
-        conf.allowedKeyManagement.set(WifiConfiguration.KeyMgmt.WPA_PSK);
-        conf.allowedPairwiseCiphers.set(WifiConfiguration.PairwiseCipher.CCMP);
-        conf.allowedPairwiseCiphers.set(WifiConfiguration.PairwiseCipher.TKIP);
-        conf.allowedGroupCiphers.set(WifiConfiguration.GroupCipher.WEP40);
-        conf.allowedGroupCiphers.set(WifiConfiguration.GroupCipher.WEP104);
-        conf.allowedGroupCiphers.set(WifiConfiguration.GroupCipher.CCMP);
-        conf.allowedGroupCiphers.set(WifiConfiguration.GroupCipher.TKIP);
-
-        conf.preSharedKey = inDoubleQuotes(password);
-
-        return conf;
-
-    }
+    // Helpers
 
     /**
-     * For networks using no security protocols.
+     * Waits for the association with a {@link WifiBackend.Association},
+     * which is started before the attempt so nothing is missed.
      *
-     * @return WifiConfiguration
+     * @param staged null to stage the request first
      */
-    private WifiConfiguration openNetworkConf() {
+    private Map<String, Object> await(ConnectRequest request, StagedNetwork staged, long timeoutMillis) throws RuntimeException {
 
-        WifiConfiguration conf = new WifiConfiguration();
-        conf.SSID = inDoubleQuotes(ssid);
-        conf.status = WifiConfiguration.Status.ENABLED;
+        long t = Metrics.start();
+        WifiBackend.Association association = backend.watch(request.ssid, metrics);
 
-        conf.allowedKeyManagement.set(WifiConfiguration.KeyMgmt.NONE);
-        conf.allowedProtocols.set(WifiConfiguration.Protocol.RSN);
-        conf.allowedProtocols.set(WifiConfiguration.Protocol.WPA);
-        conf.allowedAuthAlgorithms.clear();
-        conf.allowedPairwiseCiphers.set(WifiConfiguration.PairwiseCipher.CCMP);
-        conf.allowedPairwiseCiphers.set(WifiConfiguration.PairwiseCipher.TKIP);
-        conf.allowedGroupCiphers.set(WifiConfiguration.GroupCipher.WEP40);
-        conf.allowedGroupCiphers.set(WifiConfiguration.GroupCipher.WEP104);
-        conf.allowedGroupCiphers.set(WifiConfiguration.GroupCipher.CCMP);
-        conf.allowedGroupCiphers.set(WifiConfiguration.GroupCipher.TKIP);
+        try {
+            if (staged == null) {
+                attempt(request);
+            } else {
+                activate(staged);
+            }
+        } catch (RuntimeException e) {
+            association.stop();
+            throw e;
+        }
 
-        return conf;
+        Map<String, Object> m = association.await(timeoutMillis);
+        m.put("backend", LEGACY);
+        metrics.record(Metrics.Phase.LEGACY_CONNECT, t);
+        return m;
 
     }
 
-    // Helpers
-
-    private String inDoubleQuotes(String s) {
-        return "\"" + s + "\"";
-    }
-
-    private WifiManager manager() {
-        if (this.manager == null) {
-            throw new RuntimeException(EC.WIFI_MANAGER_ERROR.toString());
+    private void enableAndReconnect(StagedNetwork staged) throws RuntimeException {
+        String ssid = staged.request.ssid;
+        if (!enableNetwork(staged.networkId)) {
+            // The caller may retry with a fresh profile, see RetryPolicy.
+            Trace.event(Trace.ENABLE_FAILED, ssid, staged.networkId, staged.preConfigured ? 1 : 0);
+            throw new RuntimeException(EC.FAILED_TO_ENABLE_NETWORK.toString());
         }
-        return this.manager;
+        reconnect(ssid);
     }
 
-    private void tryWithConfig(WifiConfiguration conf, boolean preConfigured) throws RuntimeException {
-
-        if (preConfigured) {
-            if (!manager().enableNetwork(conf.networkId, false)) {
-                // In this case caller must handle the re-configuration part.
-                log("Pre-configured but failed to enable network: " + conf.SSID);
-                throw new RuntimeException(EC.FAILED_TO_ENABLE_NETWORK.toString());
-            }
-        } else {
-            int networkId = manager().addNetwork(conf);
-            if (!manager().enableNetwork(networkId, false)) {
-                log("Was not pre-configured && failed to enable network: " + conf.SSID);
-                throw new RuntimeException(EC.FAILED_TO_ENABLE_NETWORK.toString());
-            }
-        }
-
-        log("Enabled network: " + conf.SSID);
-        boolean reconnected = manager().reconnect();
+    private void reconnect(String ssid) throws RuntimeException {
+        Trace.event(Trace.ENABLED, ssid);
+        long t = Metrics.start();
+        boolean reconnected = backend.reconnect();
+        metrics.record(Metrics.Phase.RECONNECT, t);
         if (!reconnected) {
-            log("Reconnection failed to network: " + conf.SSID);
+            Trace.event(Trace.RECONNECT_FAILED, ssid);
             throw new RuntimeException(EC.RECONNECTION_FAILED.toString());
         }
-
     }
 
-    private void log(Object o) {
-        Log.d("WSP.WiFiConnector", o.toString());
+    private boolean enableNetwork(int networkId) {
+        long t = Metrics.start();
+        boolean enabled = backend.enableNetwork(networkId);
+        metrics.record(Metrics.Phase.ENABLE_NETWORK, t);
+        return enabled;
     }
 
-
 }
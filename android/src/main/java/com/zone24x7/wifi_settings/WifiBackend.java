@@ -0,0 +1,110 @@
+package com.zone24x7.wifi_settings;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The system services the plugin talks to, reduced to what it actually
+ * uses. {@link AndroidWifiBackend} sits on top of WifiManager, anything
+ * else (a simulator, a benchmark fixture) can stand in for it so that
+ * the scan, lookup and connect logic runs on a plain JVM.
+ */
+interface WifiBackend {
+
+    /**
+     * Told about completed scans, on whatever thread the backend learns
+     * about them.
+     */
+    interface Listener {
+
+        /**
+         * @param updated false if a scan finished without new results,
+         *                the old ones are still current
+         */
+        void scanResultsChanged(boolean updated);
+
+    }
+
+    /**
+     * Told about changes of the saved profiles, on whatever thread the
+     * backend learns about them.
+     */
+    interface ConfigurationListener {
+
+        void configuredNetworksChanged();
+
+    }
+
+    /**
+     * A running wait for the association with one network, see
+     * {@link #watch(String, Metrics)}.
+     */
+    interface Association {
+
+        /**
+         * @param timeoutMillis upper bound measured from the start of the watch
+         * @return {connected, timeToAssociateMillis, timeToIpMillis}, the
+         * latter only with an IPv4 address
+         * @throws RuntimeException with {@link EC#AUTHENTICATION_FAILED} or
+         *                          {@link EC#ASSOCIATION_TIMEOUT}
+         */
+        Map<String, Object> await(long timeoutMillis) throws RuntimeException;
+
+        void stop();
+
+    }
+
+    List<AccessPoint> scanResults();
+
+    boolean startScan();
+
+    List<SavedNetwork> configuredNetworks();
+
+    /**
+     * @return the new network id, -1 on failure
+     * @throws RuntimeException with {@link EC#UNSUPPORTED_SECURITY} if the
+     *                          platform cannot express the profile
+     */
+    int addNetwork(Profile profile) throws RuntimeException;
+
+    /**
+     * @return the network id, -1 if the profile could not be updated
+     * @throws RuntimeException with {@link EC#UNSUPPORTED_SECURITY} if the
+     *                          platform cannot express the profile
+     */
+    int updateNetwork(int networkId, Profile profile) throws RuntimeException;
+
+    boolean removeNetwork(int networkId);
+
+    boolean saveConfiguration();
+
+    boolean enableNetwork(int networkId);
+
+    boolean reconnect();
+
+    boolean disconnect();
+
+    /**
+     * @return the current connection, null while not connected
+     */
+    LinkInfo connectionInfo();
+
+    /**
+     * Starts watching for the association with the network. Must be
+     * called before the connect attempt so that nothing is missed.
+     */
+    Association watch(String ssid, Metrics metrics);
+
+    /**
+     * Scans are only watched while at least one listener is added, so
+     * listeners should be removed as soon as they are not needed.
+     */
+    void addListener(Listener listener);
+
+    void removeListener(Listener listener);
+
+    void addConfigurationListener(ConfigurationListener listener);
+
+    void removeConfigurationListener(ConfigurationListener listener);
+
+}
@@ -0,0 +1,917 @@
+package com.zone24x7.wifi_settings;
+
+import android.app.Activity;
+import android.content.Context;
+import android.location.LocationManager;
+import android.net.ConnectivityManager;
+import android.net.wifi.ScanResult;
+import android.net.wifi.WifiManager;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import io.flutter.plugin.common.MethodCall;
+import io.flutter.plugin.common.MethodChannel.MethodCallHandler;
+import io.flutter.plugin.common.MethodChannel.Result;
+import io.flutter.plugin.common.PluginRegistry;
+
+/**
+ * Everything the plugin keeps natively, shared by all the engines of the
+ * process, so caches, broadcast receivers and worker threads exist once
+ * however many engines (a UI and a background isolate, say) attached the
+ * plugin.
+ * <p>
+ * Every {@link WifiSettingsPlugin} {@link #acquire(Context)}s the core
+ * when it is attached to an engine and {@link #release()}s it when it is
+ * detached. The core itself is only built by the first call that needs
+ * it, so attaching an engine costs no service lookups, and it is torn
+ * down with the last release. Activities are tracked separately, the
+ * latest one attached is used to request permissions.
+ */
+final class WifiSettingsCore implements MethodCallHandler, PluginRegistry.RequestPermissionsResultListener {
+
+    private static final long DEFAULT_CONNECT_TIMEOUT_MILLIS = 15000;
+
+    private static final Object lock = new Object();
+
+    // Guarded by lock.
+    private static int references = 0;
+    private static Context applicationContext;
+    private static final List<Activity> activities = new ArrayList<>();
+    private static WifiSettingsCore instance;
+
+    private WifiManager wifiManager;
+    private AndroidWifiBackend wifiBackend;
+    private LocationManager locationManager;
+    private ConnectivityManager connectivityManager;
+    private MethodDispatcher dispatcher;
+    private ScanHistory scanHistory = new ScanHistory();
+    private ScanResultsStream scanResultsStream;
+    private LinkMonitor linkMonitor;
+    private ScanScheduler scanScheduler;
+    private NetworkIndex networkIndex;
+    private ConfiguredNetworks configuredNetworks;
+    private ProfileReconciler profileReconciler;
+    private Readiness readiness;
+    private Metrics metrics = new Metrics();
+    private SingleFlight singleFlight = new SingleFlight();
+    private ConnectQueue connectQueue;
+    private StagedNetworks stagedNetworks = new StagedNetworks();
+    private ConnectionBackend legacyBackend;
+    private ConnectionBackend specifierBackend;
+    private SnapshotStore snapshotStore;
+    // Guarded by snapshotStore, see coldStart().
+    private boolean snapshotRead = false;
+    private SnapshotStore.Snapshot snapshot;
+
+    private WifiSettingsCore(Context context) {
+        // Get the _wifi manager instance from the application context.
+        this.wifiManager = (WifiManager) context.getSystemService(Context.WIFI_SERVICE);
+        this.locationManager = (LocationManager) context.getSystemService(Context.LOCATION_SERVICE);
+        this.connectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        this.wifiBackend = new AndroidWifiBackend(context, this.wifiManager);
+        this.dispatcher = new MethodDispatcher();
+        this.readiness = new Readiness(context, this.wifiManager, this.locationManager, this.dispatcher);
+        this.networkIndex = new NetworkIndex(this.wifiBackend);
+        this.configuredNetworks = new ConfiguredNetworks(this.wifiBackend);
+        this.profileReconciler = new ProfileReconciler(this.wifiBackend, this.configuredNetworks, this.metrics);
+        this.linkMonitor = new LinkMonitor(context, this.wifiBackend, this.dispatcher);
+        this.scanResultsStream = new ScanResultsStream(this.wifiBackend, this.dispatcher);
+        this.scanScheduler = new ScanScheduler(this.wifiBackend, new ScanScheduler.Clock() {
+            @Override
+            public long elapsedRealtime() {
+                return SystemClock.elapsedRealtime();
+            }
+
+            @Override
+            public void postDelayed(Runnable runnable, long delayMillis) {
+                dispatcher.runOnMainThreadDelayed(runnable, delayMillis);
+            }
+
+            @Override
+            public void removeCallbacks(Runnable runnable) {
+                dispatcher.cancelOnMainThread(runnable);
+            }
+        }, Build.VERSION.SDK_INT >= Build.VERSION_CODES.P);
+        this.connectQueue = new ConnectQueue(this.dispatcher);
+        this.legacyBackend = new WiFiConnector(this.wifiBackend,
+                this.networkIndex, this.configuredNetworks, this.profileReconciler, this.metrics);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            this.specifierBackend = new SpecifierBackend(this.connectivityManager, this.networkIndex, this.metrics);
+        }
+        this.snapshotStore = new SnapshotStore(new File(context.getFilesDir(), "wifi_settings.snapshot"));
+        if (BuildConfig.DEBUG) {
+            Trace.setMirror(new Trace.Mirror() {
+                @Override
+                public void log(String line) {
+                    Log.d("WSP.Trace", line);
+                }
+            });
+        }
+    }
+
+    /**
+     * Takes a reference, the first one keeps the application context for
+     * when the core is built.
+     */
+    static void acquire(Context context) {
+        synchronized (lock) {
+            if (references++ == 0) {
+                applicationContext = context.getApplicationContext();
+            }
+        }
+    }
+
+    /**
+     * Drops a reference, the last one tears the core down if it was built.
+     */
+    static void release() {
+
+        WifiSettingsCore disposed = null;
+        synchronized (lock) {
+            if (references == 0 || --references > 0) {
+                return;
+            }
+            disposed = instance;
+            instance = null;
+            applicationContext = null;
+            activities.clear();
+        }
+
+        if (disposed != null) {
+            disposed.dispose();
+        }
+
+    }
+
+    /**
+     * @return the core, built on first use
+     * @throws IllegalStateException if no engine holds a reference
+     */
+    static WifiSettingsCore get() {
+        synchronized (lock) {
+            if (instance == null) {
+                if (references == 0) {
+                    throw new IllegalStateException("wifi_settings is not attached to an engine");
+                }
+                instance = new WifiSettingsCore(applicationContext);
+                instance.readiness.setActivity(currentActivity());
+            }
+            return instance;
+        }
+    }
+
+    /**
+     * @return the core if some call built it already, null otherwise
+     */
+    static WifiSettingsCore peek() {
+        synchronized (lock) {
+            return instance;
+        }
+    }
+
+    static void attachActivity(Activity activity) {
+        synchronized (lock) {
+            activities.remove(activity);
+            activities.add(activity);
+            if (instance != null) {
+                instance.readiness.setActivity(activity);
+            }
+        }
+    }
+
+    /**
+     * @param configChange the activity is only being recreated
+     */
+    static void detachActivity(Activity activity, boolean configChange) {
+        synchronized (lock) {
+            activities.remove(activity);
+            if (instance != null) {
+                Activity current = currentActivity();
+                instance.readiness.setActivity(current);
+                if (current == null && !configChange) {
+                    instance.readiness.activityLost();
+                }
+            }
+        }
+    }
+
+    ScanResultsStream scanResultsStream() {
+        return scanResultsStream;
+    }
+
+    LinkMonitor linkMonitor() {
+        return linkMonitor;
+    }
+
+    @Override
+    public boolean onRequestPermissionsResult(int requestCode, String[] permissions, int[] grantResults) {
+        return readiness.onRequestPermissionsResult(requestCode, permissions, grantResults);
+    }
+
+    /**
+     * Every call is handed to the {@link MethodDispatcher} so that the
+     * _wifi manager binder calls run off the platform main thread. Calls
+     * that need permissions wait for them first, see {@link Readiness}.
+     * <p>
+     * Identical reads that overlap share one computation, see
+     * {@link SingleFlight}, and connect calls run one at a time, see
+     * {@link ConnectQueue}.
+     */
+    @Override
+    public void onMethodCall(final MethodCall call, Result result) {
+
+        final Result reply = isRead(call.method)
+                ? singleFlight.join(SingleFlight.key(call.method, call.arguments), result)
+                : result;
+        if (reply == null) {
+            return;
+        }
+
+        final MethodDispatcher.Task task = new MethodDispatcher.Task() {
+            @Override
+            public void run(Result result) {
+                handle(call, result);
+            }
+        };
+
+        if (!requiresPermissions(call.method)) {
+            submit(call, reply, task);
+            return;
+        }
+
+        readiness.awaitPermissions(new Readiness.Callback() {
+            @Override
+            public void ready() {
+                submit(call, reply, task);
+            }
+
+            @Override
+            public void failed(String code) {
+                reply.error(code, null, null);
+            }
+        });
+
+    }
+
+    private void handle(MethodCall call, Result result) {
+        Trace.event(Trace.METHOD_CALL, call.method);
+        switch (call.method) {
+            case "connectToNetwork":
+                this.connect(call, result);
+                break;
+            case "connectToBest":
+                this.connectToBest(call, result);
+                break;
+            case "listWifiNetworks":
+                this.listWifiNetworks(call, result);
+                break;
+            case "stageNetwork":
+                this.stageNetwork(call, result);
+                break;
+            case "activateStaged":
+                this.activateStaged(call, result);
+                break;
+            case "discardStaged":
+                Number discarded = call.argument("handle");
+                result.success(discarded != null && stagedNetworks.discard(discarded.intValue()));
+                break;
+            case "disconnect":
+                this.disconnect(result);
+                break;
+            case "getBestBssids":
+                this.getBestBssids(call, result);
+                break;
+            case "forgetNetworks":
+                this.forgetNetworks(call, result);
+                break;
+            case "pruneProfiles":
+                this.pruneProfiles(call, result);
+                break;
+            case "startLinkMonitor":
+                Number interval = call.argument("intervalMillis");
+                linkMonitor.start(interval != null ? interval.longValue() : LinkMonitor.DEFAULT_INTERVAL_MILLIS,
+                        Boolean.TRUE.equals(call.argument("onRssiChanged")));
+                result.success(true);
+                break;
+            case "stopLinkMonitor":
+                linkMonitor.stop();
+                result.success(true);
+                break;
+            case "getLinkQuality":
+                result.success(linkMonitor.snapshot());
+                break;
+            case "getDispatchStats":
+                Map<String, Object> stats = new HashMap<>();
+                stats.putAll(dispatcher.stats());
+                stats.put("singleFlight", singleFlight.stats());
+                stats.put("connectQueue", connectQueue.stats());
+                result.success(stats);
+                break;
+            case "getCacheStats":
+                result.success(configuredNetworks.stats());
+                break;
+            case "getScanStats":
+                result.success(scanScheduler.stats());
+                break;
+            case "getMetrics":
+                result.success(metrics.snapshot());
+                break;
+            case "dumpTrace":
+                result.success(Trace.dump());
+                break;
+            case "setTraceLevel":
+                Number level = call.argument("level");
+                Trace.setLevel(level != null ? level.intValue() : Trace.INFO);
+                result.success(true);
+                break;
+            case "resetMetrics":
+                metrics.reset();
+                result.success(true);
+                break;
+            default:
+                result.notImplemented();
+                break;
+        }
+    }
+
+
+    /**
+     * Get a list of access points found in the most recent scan.
+     * This will not resolve success until _permissions(), _wifi() and
+     * _location() returns true. Because all 3 of them is required to
+     * do this operation.
+     * <p>
+     * The optional "format" argument selects the response encoding,
+     * see {@link ScanEncoder}. Without it the original list of maps
+     * is returned. With "securityMask" the capabilities string is
+     * replaced by its {@link Capabilities} bitmask. When the caller
+     * passes the "since" generation of an earlier response only the
+     * differences are returned, see {@link ScanHistory}. An optional
+     * "query" filters and projects the results natively before they
+     * are encoded, see {@link ScanQuery}; it cannot be combined with
+     * "since".
+     * <p>
+     * With "maxAgeMillis" older results trigger a fresh scan first, see
+     * {@link ScanScheduler}, and the response is wrapped as {networks,
+     * ageMillis, fresh, throttled, stale}. Right after the process
+     * started, while the system has no results yet, the snapshot saved
+     * by the last process is returned instead with stale set and the
+     * saved SSIDs in "known", and a scan is started, see
+     * {@link SnapshotStore}. Without "maxAgeMillis" the snapshot keeps
+     * the plain response shape: every network map gets "stale", or the
+     * columnar response gets stale and ageMillis.
+     *
+     * @param call   {@link MethodCall}
+     * @param result {@link Result}
+     */
+    private void listWifiNetworks(final MethodCall call, final Result result) {
+
+        try {
+
+            _isReady();
+            Number maxAge = call.argument("maxAgeMillis");
+            List<AccessPoint> current = wifiBackend.scanResults();
+
+            // Deltas are kept for real scans only.
+            SnapshotStore.Snapshot snapshot = current.isEmpty() && call.argument("since") == null ? coldStart() : null;
+            if (snapshot != null) {
+                // Nothing from the system yet: answer with what the last
+                // process saw and scan in the background meanwhile.
+                Trace.event(Trace.SNAPSHOT_SERVED, null, snapshot.scan.size(), snapshot.ageMillis());
+                if (maxAge == null) {
+                    result.success(staleResponse(call, snapshot));
+                } else {
+                    Map<String, Object> m = new HashMap<>();
+                    m.put("networks", scanResponse(call, snapshot.scan));
+                    m.put("ageMillis", snapshot.ageMillis());
+                    m.put("fresh", false);
+                    m.put("throttled", false);
+                    m.put("stale", true);
+                    m.put("known", snapshot.known);
+                    result.success(m);
+                }
+                requestScan(0, new ScanScheduler.Callback() {
+                    @Override
+                    public void done(boolean fresh, boolean throttled) {
+                    }
+                });
+                return;
+            }
+
+            if (maxAge == null) {
+                result.success(scanResponse(call, current));
+                return;
+            }
+
+            requestScan(maxAge.longValue(), new ScanScheduler.Callback() {
+                @Override
+                public void done(final boolean fresh, final boolean throttled) {
+                    boolean queued = dispatcher.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                List<AccessPoint> latest = wifiBackend.scanResults();
+                                Map<String, Object> m = new HashMap<>();
+                                m.put("networks", scanResponse(call, latest));
+                                m.put("ageMillis", scanScheduler.ageMillis(latest));
+                                m.put("fresh", fresh);
+                                m.put("throttled", throttled);
+                                m.put("stale", false);
+                                result.success(m);
+                            } catch (Exception e) {
+                                result.error(null, e.getMessage(), e);
+                            }
+                        }
+                    });
+                    if (!queued) {
+                        result.error(EC.DISPATCH_REJECTED.toString(), null, null);
+                    }
+                }
+            });
+
+        } catch (Exception e) {
+            result.error(null, e.getMessage(), e);
+        }
+
+    }
+
+    /**
+     * Connects to a specified wifi network with {ssid, password}
+     * Before connecting to a WIFI network we need to check the
+     * security type of the WIFI network. ScanResult class
+     * has the #capabilities{{@link ScanResult}} field that gives
+     * the type of network.
+     * <p>
+     * With "awaitConnection" the call only completes once the device is
+     * associated with the network and has an IP (or "timeoutMillis"
+     * expires). Android Q and later connect with a {@link SpecifierBackend},
+     * which also takes "localOnly" and "bindProcess", unless "backend" is
+     * "legacy"; older releases always use the legacy backend.
+     * <p>
+     * With a "retry" policy (see {@link RetryPolicy}) failed attempts are
+     * retried natively and the call always succeeds with {connected,
+     * error, attempts}, plus the awaited connection details.
+     *
+     * @param call   {@link MethodCall}
+     * @param result {@link Result}
+     * @link https://developer.android.com/reference/android/net/_wifi/ScanResult.html#capabilities
+     * @link https://stackoverflow.com/questions/8818290/how-do-i-connect-to-a-specific-wi-fi-network-in-android-programmatically
+     */
+    private void connect(MethodCall call, Result result) {
+
+        long t = Metrics.start();
+
+        try {
+
+            _isReady();
+
+            String _ssid = call.argument("ssid");
+            String _password = call.argument("password");
+
+            ConnectRequest request = withSpecifierOptions(ConnectRequest.of(_ssid, _password,
+                    (String) call.argument("identity"), Boolean.TRUE.equals(call.argument("pinBssid"))), call);
+            ConnectionBackend backend = backend((String) call.argument("backend"));
+            RetryPolicy retry = RetryPolicy.of(call.<Map<String, Object>>argument("retry"));
+            boolean await = Boolean.TRUE.equals(call.argument("awaitConnection"));
+            Number timeout = call.argument("timeoutMillis");
+            long timeoutMillis = timeout != null ? timeout.longValue() : DEFAULT_CONNECT_TIMEOUT_MILLIS;
+
+            if (retry != null) {
+                result.success(retry.run(backend, request, await, timeoutMillis));
+                return;
+            }
+
+            if (!await) {
+                result.success(backend.connect(request));
+                return;
+            }
+
+            result.success(backend.attemptAndAwait(request, timeoutMillis));
+
+        } catch (Exception e) {
+            result.error(e.getMessage(), null, e);
+        } finally {
+            metrics.record(Metrics.Phase.CONNECT, t);
+        }
+
+    }
+
+    /**
+     * Picks the best network out of a prioritized candidate list in a
+     * single round trip. The candidates are ranked once against the
+     * current scan snapshot and the configured networks (see
+     * {@link Candidates}) and attempted in
+     * order until one succeeds. With "awaitConnection" a candidate only
+     * counts as connected once it has an IP, so a network that fails to
+     * associate falls back to the next one.
+     *
+     * @param call   {@link MethodCall} with candidates: [{ssid, password, priority}]
+     * @param result {@link Result} with {ssid, attempts}; ssid is null if none connected
+     */
+    private void connectToBest(MethodCall call, Result result) {
+
+        try {
+
+            _isReady();
+
+            List<Map<String, Object>> raw = call.argument("candidates");
+            boolean await = Boolean.TRUE.equals(call.argument("awaitConnection"));
+            boolean pinBssid = Boolean.TRUE.equals(call.argument("pinBssid"));
+            ConnectionBackend backend = backend((String) call.argument("backend"));
+            Number timeout = call.argument("timeoutMillis");
+            long timeoutMillis = timeout != null ? timeout.longValue() : DEFAULT_CONNECT_TIMEOUT_MILLIS;
+
+            List<Map<String, Object>> attempts = new ArrayList<>();
+            String connected = null;
+
+            for (Candidates.Candidate candidate : Candidates.rank(raw, this.networkIndex, this.configuredNetworks)) {
+
+                Map<String, Object> attempt = new HashMap<>();
+                attempt.put("ssid", candidate.ssid);
+                attempt.put("visible", candidate.visible);
+                attempt.put("level", candidate.visible ? candidate.level : null);
+                attempts.add(attempt);
+
+                long startedAt = SystemClock.elapsedRealtime();
+                try {
+                    ConnectRequest request = withSpecifierOptions(
+                            ConnectRequest.of(candidate.ssid, candidate.password, null, pinBssid), call);
+                    if (await) {
+                        attempt.putAll(backend.attemptAndAwait(request, timeoutMillis));
+                    } else {
+                        backend.attempt(request);
+                    }
+                    attempt.put("ok", true);
+                    connected = candidate.ssid;
+                } catch (Exception e) {
+                    Trace.event(Trace.CANDIDATE_FAILED, e.getMessage(), attempts.size());
+                    attempt.put("ok", false);
+                    attempt.put("error", e.getMessage());
+                }
+                attempt.put("millis", SystemClock.elapsedRealtime() - startedAt);
+
+                if (connected != null) {
+                    break;
+                }
+
+            }
+
+            Map<String, Object> m = new HashMap<>();
+            m.put("ssid", connected);
+            m.put("attempts", attempts);
+            result.success(m);
+
+        } catch (Exception e) {
+            result.error(e.getMessage(), null, null);
+        }
+
+    }
+
+    /**
+     * Does everything a connect does short of switching networks: the
+     * security and BSSID are resolved from the latest scan and the profile
+     * is saved (or, with the specifier backend, the network request is built),
+     * so that {@link #activateStaged} only has to switch. Takes the same
+     * arguments as a connect. Runs on the connect thread, so a profile is
+     * never saved for an SSID a connect is saving one for at the same time.
+     *
+     * @param call   {@link MethodCall} with {ssid, password, identity, pinBssid, backend,
+     *               localOnly, bindProcess}
+     * @param result {@link Result} with {handle, backend, bssid, preConfigured}
+     */
+    private void stageNetwork(MethodCall call, Result result) {
+        try {
+            _isReady();
+            ConnectRequest request = withSpecifierOptions(ConnectRequest.of((String) call.argument("ssid"),
+                    (String) call.argument("password"), (String) call.argument("identity"),
+                    Boolean.TRUE.equals(call.argument("pinBssid"))), call);
+            StagedNetwork staged = backend((String) call.argument("backend")).stage(request);
+            int handle = stagedNetworks.put(staged);
+            Trace.event(Trace.NETWORK_STAGED, request.ssid, handle, staged.networkId);
+
+            Map<String, Object> m = new HashMap<>();
+            m.put("handle", handle);
+            m.put("backend", staged.backend);
+            m.put("bssid", staged.bssid);
+            m.put("preConfigured", staged.preConfigured);
+            result.success(m);
+        } catch (Exception e) {
+            result.error(e.getMessage(), null, null);
+        }
+    }
+
+    /**
+     * Switches to a network staged with {@link #stageNetwork}, which uses
+     * up its handle. Replies true once the switch is under way or, with
+     * "awaitConnection", like an awaited connect.
+     *
+     * @param call   {@link MethodCall} with {handle, awaitConnection, timeoutMillis}
+     * @param result {@link Result}
+     */
+    private void activateStaged(MethodCall call, Result result) {
+
+        long t = Metrics.start();
+
+        try {
+
+            _isReady();
+            Number handle = call.argument("handle");
+            StagedNetwork staged = stagedNetworks.take(handle != null ? handle.intValue() : 0);
+            ConnectionBackend backend = backend(staged.backend);
+
+            if (!Boolean.TRUE.equals(call.argument("awaitConnection"))) {
+                backend.activate(staged);
+                result.success(true);
+                return;
+            }
+
+            Number timeout = call.argument("timeoutMillis");
+            result.success(backend.activateAndAwait(staged,
+                    timeout != null ? timeout.longValue() : DEFAULT_CONNECT_TIMEOUT_MILLIS));
+
+        } catch (RuntimeException e) {
+            result.error(e.getMessage(), null, null);
+        } finally {
+            metrics.record(Metrics.Phase.CONNECT, t);
+        }
+
+    }
+
+    private void disconnect(Result result) {
+        try {
+            _isReady();
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+                SpecifierBackend.releaseActive(this.connectivityManager);
+            }
+            result.success(this.wifiBackend.disconnect());
+        } catch (RuntimeException e) {
+            result.error(e.getMessage(), null, e);
+        }
+    }
+
+    /**
+     * The best access points of an SSID in the latest scan, the first
+     * one is what a connect with "pinBssid" locks onto.
+     *
+     * @param call   {@link MethodCall} with ssid
+     * @param result {@link Result} with [{bssid, level, frequency}], best first
+     */
+    private void getBestBssids(MethodCall call, Result result) {
+        try {
+            _isReady();
+            List<Map<String, Object>> list = new ArrayList<>();
+            for (AccessPoint ap : networkIndex.bestBssids((String) call.argument("ssid"))) {
+                Map<String, Object> m = new HashMap<>();
+                m.put("bssid", ap.bssid);
+                m.put("level", ap.level);
+                m.put("frequency", ap.frequency);
+                list.add(m);
+            }
+            result.success(list);
+        } catch (RuntimeException e) {
+            result.error(e.getMessage(), null, e);
+        }
+    }
+
+    /**
+     * Removes every saved profile of the given SSIDs in one batch, see
+     * {@link ProfileReconciler}.
+     *
+     * @param call   {@link MethodCall} with ssids: [String]
+     * @param result {@link Result} with the number of profiles removed
+     */
+    private void forgetNetworks(MethodCall call, Result result) {
+        try {
+            _isReady();
+            List<String> ssids = call.argument("ssids");
+            result.success(profileReconciler.forget(
+                    ssids != null ? ssids : new ArrayList<String>()));
+        } catch (RuntimeException e) {
+            result.error(e.getMessage(), null, e);
+        }
+    }
+
+    /**
+     * Removes duplicate profiles, and every profile of the optional
+     * "stale" SSIDs, in one batch.
+     *
+     * @param call   {@link MethodCall} with stale: [String]
+     * @param result {@link Result} with the number of profiles removed
+     */
+    private void pruneProfiles(MethodCall call, Result result) {
+        try {
+            _isReady();
+            List<String> stale = call.argument("stale");
+            result.success(profileReconciler.prune(
+                    stale != null ? new HashSet<>(stale) : new HashSet<String>()));
+        } catch (RuntimeException e) {
+            result.error(e.getMessage(), null, e);
+        }
+    }
+
+    // Internal methods only
+
+    /**
+     * The cold start snapshot in the shape of a response without
+     * "maxAgeMillis", marked stale.
+     */
+    @SuppressWarnings("unchecked")
+    private Object staleResponse(MethodCall call, SnapshotStore.Snapshot snapshot) {
+
+        Object networks = scanResponse(call, snapshot.scan);
+
+        if (networks instanceof Map) {
+            Map<String, Object> columnar = (Map<String, Object>) networks;
+            columnar.put("stale", true);
+            columnar.put("ageMillis", snapshot.ageMillis());
+        } else {
+            for (Map<String, String> network : (List<Map<String, String>>) networks) {
+                network.put("stale", "true");
+            }
+        }
+        return networks;
+
+    }
+
+    private Object scanResponse(MethodCall call, List<AccessPoint> latest) {
+
+        String format = call.argument("format");
+        boolean securityMask = Boolean.TRUE.equals(call.argument("securityMask"));
+        Number since = call.argument("since");
+        ScanQuery query = ScanQuery.of(call.<Map<String, Object>>argument("query"));
+
+        Trace.event(Trace.SCAN_RESULTS, null, latest.size());
+        if (since != null) {
+            if (query != null) {
+                // Generations are kept for the whole scan only.
+                throw new RuntimeException(EC.INVALID_QUERY.toString());
+            }
+            scanHistory.refresh(latest);
+            return scanHistory.since(since.longValue(), format, securityMask);
+        }
+        if (query == null) {
+            return ScanEncoder.encode(latest, format, securityMask);
+        }
+        return ScanEncoder.encode(query.apply(latest), format, securityMask, query.fields);
+
+    }
+
+    /**
+     * The snapshot written by an earlier process, read on first use and
+     * only served until the system has scan results of its own.
+     */
+    private SnapshotStore.Snapshot coldStart() {
+        synchronized (snapshotStore) {
+            if (!snapshotRead) {
+                snapshotRead = true;
+                snapshot = snapshotStore.read();
+            }
+            return snapshot;
+        }
+    }
+
+    /**
+     * Asks the {@link ScanScheduler} for results. After a fresh scan the
+     * network index is rebuilt on its next lookup and the snapshot file
+     * is written, scans are not watched otherwise.
+     */
+    private void requestScan(long maxAgeMillis, final ScanScheduler.Callback callback) {
+        scanScheduler.request(maxAgeMillis, new ScanScheduler.Callback() {
+            @Override
+            public void done(boolean fresh, boolean throttled) {
+                if (fresh) {
+                    networkIndex.invalidateScans();
+                    dispatcher.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            persistSnapshot();
+                        }
+                    });
+                }
+                callback.done(fresh, throttled);
+            }
+        });
+    }
+
+    /**
+     * Writes the latest scan and the saved profiles to the snapshot
+     * file, on a worker after every scan the plugin asked for.
+     */
+    private void persistSnapshot() {
+
+        List<AccessPoint> latest = wifiBackend.scanResults();
+        if (latest.isEmpty()) {
+            return;
+        }
+
+        synchronized (snapshotStore) {
+            snapshotRead = true;
+            snapshot = null;
+        }
+
+        try {
+            long ageMillis = Math.max(0, scanScheduler.ageMillis(latest));
+            snapshotStore.write(System.currentTimeMillis() - ageMillis, latest, configuredNetworks.all());
+        } catch (IOException | RuntimeException e) {
+            Trace.event(Trace.SNAPSHOT_FAILED, e.getMessage());
+        }
+
+    }
+
+    /**
+     * The specifier backend on Android Q and later, where apps targeting
+     * Q can no longer add or enable networks, unless the caller asks for
+     * the legacy one. Older releases always use the legacy backend.
+     *
+     * @param preferred {@link ConnectionBackend#LEGACY}, {@link ConnectionBackend#SPECIFIER} or null
+     */
+    private ConnectionBackend backend(String preferred) {
+        if (specifierBackend == null || ConnectionBackend.LEGACY.equals(preferred)) {
+            return legacyBackend;
+        }
+        return specifierBackend;
+    }
+
+    /**
+     * @return the request with the "localOnly" and "bindProcess" options of the call
+     */
+    private static ConnectRequest withSpecifierOptions(ConnectRequest request, MethodCall call) {
+        return request.withSpecifierOptions(Boolean.TRUE.equals(call.argument("localOnly")),
+                Boolean.TRUE.equals(call.argument("bindProcess")));
+    }
+
+    /**
+     * Stops the threads and unregisters the receivers. Replies still in
+     * flight are dropped with the engines that were waiting for them.
+     */
+    private void dispose() {
+        linkMonitor.dispose();
+        scanResultsStream.dispose();
+        scanScheduler.dispose();
+        readiness.dispose();
+        configuredNetworks.dispose();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            SpecifierBackend.releaseActive(this.connectivityManager);
+        }
+        wifiBackend.dispose();
+        dispatcher.shutdown();
+    }
+
+    // Guarded by lock.
+    private static Activity currentActivity() {
+        return activities.isEmpty() ? null : activities.get(activities.size() - 1);
+    }
+
+    private void submit(MethodCall call, Result result, MethodDispatcher.Task task) {
+        if (isConnect(call.method)) {
+            connectQueue.submit(call.method, call.arguments, result, task);
+        } else if (call.method.equals("stageNetwork")) {
+            // Not superseded like a connect, but serialized with them.
+            dispatcher.dispatchConnect(call.method, result, task);
+        } else {
+            dispatcher.dispatch(call.method, result, task);
+        }
+    }
+
+    private void _isReady() {
+        long t = Metrics.start();
+        readiness.requireServices();
+        metrics.record(Metrics.Phase.READY, t);
+    }
+
+    private static boolean isRead(String method) {
+        return method.equals("listWifiNetworks");
+    }
+
+    private static boolean isConnect(String method) {
+        return method.equals("connectToNetwork") || method.equals("connectToBest")
+                || method.equals("activateStaged");
+    }
+
+    private static boolean requiresPermissions(String method) {
+        switch (method) {
+            case "connectToNetwork":
+            case "connectToBest":
+            case "stageNetwork":
+            case "activateStaged":
+            case "listWifiNetworks":
+            case "getBestBssids":
+            case "disconnect":
+            case "forgetNetworks":
+            case "pruneProfiles":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+}
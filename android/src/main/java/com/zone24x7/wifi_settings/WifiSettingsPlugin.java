@@ -1,22 +1,12 @@
 package com.zone24x7.wifi_settings;
 
-import android.Manifest;
-import android.app.Activity;
 import android.content.Context;
-import android.content.Intent;
-import android.content.pm.PackageManager;
-import android.location.LocationManager;
-import android.net.wifi.ScanResult;
-import android.net.wifi.WifiManager;
-import android.os.Build;
-import android.provider.Settings;
-import android.util.Log;
-
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
 
+import io.flutter.embedding.engine.plugins.FlutterPlugin;
+import io.flutter.embedding.engine.plugins.activity.ActivityAware;
+import io.flutter.embedding.engine.plugins.activity.ActivityPluginBinding;
+import io.flutter.plugin.common.BinaryMessenger;
+import io.flutter.plugin.common.EventChannel;
 import io.flutter.plugin.common.MethodCall;
 import io.flutter.plugin.common.MethodChannel;
 import io.flutter.plugin.common.MethodChannel.MethodCallHandler;
@@ -24,214 +14,164 @@ import io.flutter.plugin.common.MethodChannel.Result;
 import io.flutter.plugin.common.PluginRegistry;
 import io.flutter.plugin.common.PluginRegistry.Registrar;
 
-public class WifiSettingsPlugin implements MethodCallHandler {
-
-    private Activity activity;
-    private WifiManager wifiManager;
-    private LocationManager locationManager;
-
-    @SuppressWarnings("WeakerAccess")
-    public WifiSettingsPlugin(Activity activity) {
-        this.activity = activity;
-        // Get the _wifi manager instance from the activity context.
-        this.wifiManager = (WifiManager) activity.getApplicationContext()
-                .getSystemService(Context.WIFI_SERVICE);
-        this.locationManager = (LocationManager) activity.getApplicationContext()
-                .getSystemService(Context.LOCATION_SERVICE);
-    }
+/**
+ * The plugin as seen by one engine: its channels and its activity. All
+ * the state lives in the {@link WifiSettingsCore} that every engine of
+ * the process shares, this only holds a reference to it while attached.
+ */
+public class WifiSettingsPlugin implements FlutterPlugin, ActivityAware, MethodCallHandler,
+        PluginRegistry.RequestPermissionsResultListener {
 
     /**
-     * Plugin registration.
+     * Hands an event channel to the shared core's stream on the first
+     * listen, so that listening is what builds the core, not attaching.
      */
-    public static void registerWith(Registrar registrar) {
+    private abstract static class LazyStream implements EventChannel.StreamHandler {
 
-        final MethodChannel channel = new MethodChannel(registrar.messenger(), "wifi_settings");
-        channel.setMethodCallHandler(new WifiSettingsPlugin(registrar.activity()));
+        private EventChannel.StreamHandler delegate;
 
-        // noinspection Convert2Lambda
-        registrar.addRequestPermissionsResultListener(new PluginRegistry.RequestPermissionsResultListener() {
-            @Override
-            public boolean onRequestPermissionsResult(int i, String[] requestedPermissions, int[] ints) {
-                return false;
-            }
-        });
-
-    }
+        abstract EventChannel.StreamHandler create();
 
-    @Override
-    public void onMethodCall(MethodCall call, Result result) {
-        switch (call.method) {
-            case "connectToNetwork":
-                this.connect(call, result);
-                break;
-            case "listWifiNetworks":
-                this.listWifiNetworks(result);
-                break;
-            case "disconnect":
-                this.disconnect(result);
-                break;
-            default:
-                result.notImplemented();
-                break;
+        @Override
+        public void onListen(Object arguments, EventChannel.EventSink events) {
+            if (delegate == null) {
+                delegate = create();
+            }
+            delegate.onListen(arguments, events);
         }
-    }
 
-
-    /**
-     * Get a list of access points found in the most recent scan.
-     * This will not resolve success until _permissions(), _wifi() and
-     * _location() returns true. Because all 3 of them is required to
-     * do this operation.
-     *
-     * @param result {@link Result}
-     */
-    private void listWifiNetworks(Result result) {
-
-        try {
-
-            _isReady();
-            log("listWifiNetworks() called");
-            List<Map<String, String>> list = new ArrayList<>();
-
-            for (ScanResult sr : wifiManager.getScanResults()) {
-                Map<String, String> m = new HashMap<>();
-                m.put("ssid", sr.SSID);
-                m.put("bssid", sr.BSSID);
-                m.put("capabilities", sr.capabilities);
-                m.put("level", String.valueOf(sr.level));
-                m.put("frequency", String.valueOf(sr.frequency));
-                list.add(m);
+        @Override
+        public void onCancel(Object arguments) {
+            if (delegate != null) {
+                delegate.onCancel(arguments);
             }
+        }
 
-            log("Latest scan results " + list.size());
-            result.success(list);
+    }
 
-        } catch (Exception e) {
-            result.error(null, e.getMessage(), e);
-        }
+    private MethodChannel channel;
+    private EventChannel scanResults;
+    private EventChannel linkQuality;
+    private LazyStream scanResultsStream;
+    private LazyStream linkQualityStream;
+    private ActivityPluginBinding activityBinding;
 
+    public WifiSettingsPlugin() {
     }
 
     /**
-     * Connects to a specified wifi network with {ssid, password}
-     * Before connecting to a WIFI network we need to check the
-     * security type of the WIFI network. ScanResult class
-     * has the #capabilities{{@link ScanResult}} field that gives
-     * the type of network.
-     *
-     * @param call   {@link MethodCall}
-     * @param result {@link Result}
-     * @link https://developer.android.com/reference/android/net/_wifi/ScanResult.html#capabilities
-     * @link https://stackoverflow.com/questions/8818290/how-do-i-connect-to-a-specific-wi-fi-network-in-android-programmatically
+     * Plugin registration for the v1 embedding, the plugin stays attached
+     * for the life of the process.
      */
-    private void connect(MethodCall call, Result result) {
-
-        try {
-
-            _isReady();
-
-            log("connectToNetwork() called");
-            String _ssid = call.argument("ssid");
-            String _password = call.argument("password");
-
-            WiFiConnector connector = new WiFiConnector(this.wifiManager);
-            connector.setCredentials(_ssid, _password);
-            result.success(connector.connect());
+    public static void registerWith(Registrar registrar) {
 
-        } catch (Exception e) {
-            result.error(e.getMessage(), null, e);
+        WifiSettingsPlugin plugin = new WifiSettingsPlugin();
+        plugin.attach(registrar.context(), registrar.messenger());
+        if (registrar.activity() != null) {
+            WifiSettingsCore.attachActivity(registrar.activity());
         }
+        registrar.addRequestPermissionsResultListener(plugin);
 
     }
 
-    private void disconnect(Result result) {
-        try {
-            _isReady();
-            log("disconnect() called");
-            result.success(this.wifiManager.disconnect());
-        } catch (RuntimeException e) {
-            result.error(e.getMessage(), null, e);
-        }
+    @Override
+    public void onAttachedToEngine(FlutterPluginBinding binding) {
+        attach(binding.getApplicationContext(), binding.getBinaryMessenger());
     }
 
-    // Internal methods only
-
-    private boolean _permissions() {
-
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
-
-            int accessCoarseLocation = activity.checkSelfPermission(Manifest.permission.ACCESS_COARSE_LOCATION);
-            int accessFineLocation = activity.checkSelfPermission(Manifest.permission.ACCESS_FINE_LOCATION);
-            int accessNetworkState = activity.checkSelfPermission(Manifest.permission.ACCESS_NETWORK_STATE);
-            int accessWiFiState = activity.checkSelfPermission(Manifest.permission.ACCESS_WIFI_STATE);
-            int changeWiFiState = activity.checkSelfPermission(Manifest.permission.CHANGE_WIFI_STATE);
-            int changeNetworkState = activity.checkSelfPermission(Manifest.permission.CHANGE_NETWORK_STATE);
-
-            boolean perms = accessCoarseLocation == PackageManager.PERMISSION_GRANTED &&
-                    accessFineLocation == PackageManager.PERMISSION_GRANTED &&
-                    accessNetworkState == PackageManager.PERMISSION_GRANTED &&
-                    accessWiFiState == PackageManager.PERMISSION_GRANTED &&
-                    changeWiFiState == PackageManager.PERMISSION_GRANTED &&
-                    changeNetworkState == PackageManager.PERMISSION_GRANTED;
-
-            // Revoke for access
-            if (!perms) {
-                activity.requestPermissions(new String[]{
-                        Manifest.permission.ACCESS_COARSE_LOCATION,
-                        Manifest.permission.ACCESS_FINE_LOCATION,
-                        Manifest.permission.ACCESS_NETWORK_STATE,
-                        Manifest.permission.ACCESS_WIFI_STATE,
-                        Manifest.permission.CHANGE_WIFI_STATE,
-                        Manifest.permission.CHANGE_NETWORK_STATE,
-                }, 1);
-                return false;
-            }
+    @Override
+    public void onDetachedFromEngine(FlutterPluginBinding binding) {
 
-            return true;
-        }
+        channel.setMethodCallHandler(null);
+        scanResults.setStreamHandler(null);
+        linkQuality.setStreamHandler(null);
+        // The engine is gone, its listeners will not cancel themselves.
+        scanResultsStream.onCancel(null);
+        linkQualityStream.onCancel(null);
+        channel = null;
+        scanResults = null;
+        linkQuality = null;
 
-        return true;
+        WifiSettingsCore.release();
 
     }
 
-    private boolean _wifi() {
-        if (!wifiManager.isWifiEnabled()) {
-            log("WiFi services was disabled. Turing on the _wifi...");
-            return this.wifiManager.setWifiEnabled(true);
-        }
+    @Override
+    public void onAttachedToActivity(ActivityPluginBinding binding) {
+        activityBinding = binding;
+        binding.addRequestPermissionsResultListener(this);
+        WifiSettingsCore.attachActivity(binding.getActivity());
+    }
 
-        return true;
+    @Override
+    public void onDetachedFromActivityForConfigChanges() {
+        detachActivity(true);
     }
 
-    private boolean _location() {
-        if (!locationManager.isProviderEnabled(LocationManager.GPS_PROVIDER)) {
-            Intent intent = new Intent();
-            intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
-            intent.setAction(Settings.ACTION_LOCATION_SOURCE_SETTINGS);
-            activity.getApplicationContext().startActivity(intent);
-            return false;
-        }
-        return true;
+    @Override
+    public void onReattachedToActivityForConfigChanges(ActivityPluginBinding binding) {
+        onAttachedToActivity(binding);
     }
 
-    private void log(Object o) {
-        Log.d("WifiSettingsPlugin: ", o.toString());
+    @Override
+    public void onDetachedFromActivity() {
+        detachActivity(false);
     }
 
-    private void _isReady() {
+    /**
+     * Builds the shared core on the first call, see {@link WifiSettingsCore}.
+     */
+    @Override
+    public void onMethodCall(MethodCall call, Result result) {
+        WifiSettingsCore.get().onMethodCall(call, result);
+    }
 
-        if (!_permissions()) {
-            throw new RuntimeException(EC.PERMISSIONS_NOT_GRANTED.toString());
-        }
+    @Override
+    public boolean onRequestPermissionsResult(int requestCode, String[] permissions, int[] grantResults) {
+        // Without a core nothing asked for permissions.
+        WifiSettingsCore core = WifiSettingsCore.peek();
+        return core != null && core.onRequestPermissionsResult(requestCode, permissions, grantResults);
+    }
 
-        if (!_wifi()) {
-            throw new RuntimeException(EC.WIFI_DISABLED.toString());
-        }
+    // Helpers
 
-        if (!_location()) {
-            throw new RuntimeException(EC.LOCATION_DISABLED.toString());
-        }
+    private void attach(Context context, BinaryMessenger messenger) {
+
+        WifiSettingsCore.acquire(context);
+
+        channel = new MethodChannel(messenger, "wifi_settings");
+        scanResults = new EventChannel(messenger, ScanResultsStream.CHANNEL);
+        linkQuality = new EventChannel(messenger, LinkMonitor.CHANNEL);
+        scanResultsStream = new LazyStream() {
+            @Override
+            EventChannel.StreamHandler create() {
+                return WifiSettingsCore.get().scanResultsStream().streamHandler();
+            }
+        };
+        linkQualityStream = new LazyStream() {
+            @Override
+            EventChannel.StreamHandler create() {
+                return WifiSettingsCore.get().linkMonitor().streamHandler();
+            }
+        };
+
+        channel.setMethodCallHandler(this);
+        scanResults.setStreamHandler(scanResultsStream);
+        linkQuality.setStreamHandler(linkQualityStream);
+
+    }
 
+    /**
+     * @param configChange the activity is only being recreated, a
+     *                     permission request it shows still answers
+     */
+    private void detachActivity(boolean configChange) {
+        if (activityBinding == null) {
+            return;
+        }
+        activityBinding.removeRequestPermissionsResultListener(this);
+        WifiSettingsCore.detachActivity(activityBinding.getActivity(), configChange);
+        activityBinding = null;
     }
 
 }
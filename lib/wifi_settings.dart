@@ -1,25 +1,602 @@
 import 'dart:async';
+import 'dart:typed_data';
 
 import 'package:flutter/services.dart';
 
 class WifiSettings {
   static const MethodChannel _channel = const MethodChannel('wifi_settings');
+  static const EventChannel _scanResultsChannel =
+      const EventChannel('wifi_settings/scan_results');
+  static const EventChannel _linkQualityChannel =
+      const EventChannel('wifi_settings/link_quality');
+
+  static Stream<List<dynamic>> _scanResults;
+  static Stream<Map<dynamic, dynamic>> _linkQuality;
 
   /// Get a list of access points found in the most recent scan.
   /// Check: https://developer.android.com/guide/topics/connectivity/wifi-scan
   ///
+  /// The results are transferred in the compact columnar format and
+  /// expanded here into the same maps the plugin has always returned.
+  ///
+  /// Right after app start, before the system has any results, the
+  /// networks saved by the previous run are returned instead, each with
+  /// 'stale' set to 'true', and a scan is started in the background.
+  ///
   Future<List<dynamic>> get availableNetworks async {
-    return await _channel.invokeListMethod('listWifiNetworks');
+    return listNetworks();
+  }
+
+  /// Same as [availableNetworks]. With [securityMask] every network has
+  /// a 'security' bitmask (see [WifiSecurity]) instead of the raw
+  /// 'capabilities' string.
+  ///
+  /// A [query] is evaluated natively before anything is sent over, so
+  /// only the matching networks and the requested fields are
+  /// transferred, see [WifiQuery].
+  ///
+  Future<List<dynamic>> listNetworks(
+      {bool securityMask = false, WifiQuery query}) async {
+    Map<String, dynamic> args = new Map();
+    args['format'] = 'columnar';
+    args['securityMask'] = securityMask;
+    args['query'] = query?.toMap();
+    return _decodeNetworks(
+        await _channel.invokeMethod('listWifiNetworks', args));
+  }
+
+  /// Like [listNetworks] but scans first when the current results are
+  /// older than [maxAgeMillis]. Concurrent calls share one scan, and
+  /// when the system would throttle the scan the current results are
+  /// returned right away.
+  ///
+  /// Returns {networks, ageMillis, fresh, throttled, stale} where
+  /// networks has the same shape as [availableNetworks] and ageMillis is
+  /// the age of the newest result, -1 if there are none.
+  ///
+  /// Right after app start, before the system has any results, the
+  /// networks saved by the previous run are returned with stale set to
+  /// true and 'known' mapping the SSIDs saved on the device to their
+  /// security class. A scan is started in the background; call again
+  /// for fresh results.
+  ///
+  Future<Map<dynamic, dynamic>> scan(
+      {int maxAgeMillis = 30000,
+      bool securityMask = false,
+      WifiQuery query}) async {
+    Map<String, dynamic> args = new Map();
+    args['format'] = 'columnar';
+    args['securityMask'] = securityMask;
+    args['maxAgeMillis'] = maxAgeMillis;
+    args['query'] = query?.toMap();
+    Map<dynamic, dynamic> response =
+        await _channel.invokeMapMethod('listWifiNetworks', args);
+    response['networks'] = _decodeNetworks(response['networks']);
+    return response;
+  }
+
+  /// Only the access points that were added, changed or removed since
+  /// the given [generation]. Pass the 'generation' of the previous
+  /// response back in on the next call, or 0 to get everything. When
+  /// 'full' is true the response replaces everything known so far.
+  ///
+  /// Returns {generation, full, added, changed, removed} where added and
+  /// changed have the same shape as [availableNetworks] and removed is a
+  /// list of BSSIDs.
+  ///
+  Future<Map<dynamic, dynamic>> networksSince(int generation) async {
+    Map<String, dynamic> args = new Map();
+    args['format'] = 'columnar';
+    args['since'] = generation;
+    Map<dynamic, dynamic> delta =
+        await _channel.invokeMapMethod('listWifiNetworks', args);
+    delta['added'] = _decodeNetworks(delta['added']);
+    delta['changed'] = _decodeNetworks(delta['changed']);
+    return delta;
+  }
+
+  /// Scan results pushed by the platform every time a scan completes,
+  /// in the same shape as [availableNetworks]. Bursts of scans are
+  /// coalesced into at most one event per [intervalMillis]. The stream
+  /// is shared by all listeners, so the interval of the first call wins.
+  /// A scan the platform is too busy to read is reported as a
+  /// DISPATCH_REJECTED error, the stream stays open.
+  ///
+  Stream<List<dynamic>> scanResults({int intervalMillis = 1000}) {
+    if (_scanResults == null) {
+      Map<String, dynamic> args = new Map();
+      args['format'] = 'columnar';
+      args['intervalMillis'] = intervalMillis;
+      _scanResults = _scanResultsChannel
+          .receiveBroadcastStream(args)
+          .map<List<dynamic>>(_decodeNetworks);
+    }
+    return _scanResults;
+  }
+
+  /// Starts sampling the current connection natively every
+  /// [intervalMillis], and on every RSSI change with [onRssiChanged].
+  /// Calling it again changes the rate. See [linkQuality].
+  ///
+  Future<bool> startLinkMonitor(
+      {int intervalMillis = 2000, bool onRssiChanged = false}) async {
+    Map<String, dynamic> args = new Map();
+    args['intervalMillis'] = intervalMillis;
+    args['onRssiChanged'] = onRssiChanged;
+    return await _channel.invokeMethod('startLinkMonitor', args);
+  }
+
+  Future<bool> stopLinkMonitor() async {
+    return await _channel.invokeMethod('stopLinkMonitor');
+  }
+
+  /// Rolling statistics of the current connection over the last 256
+  /// samples: {running, connected, samples, ssid, bssid, frequency,
+  /// windowMillis, ageMillis, rssi, linkSpeed}. rssi (dBm) and linkSpeed
+  /// (Mbps) are {last, min, p10, p50, avg, max}. The window restarts
+  /// when the device moves to another BSSID.
+  ///
+  Future<Map<dynamic, dynamic>> get linkQuality async {
+    return await _channel.invokeMapMethod('getLinkQuality');
+  }
+
+  /// The same statistics as [linkQuality], pushed at most every
+  /// [throttleMillis]. Sampling is started at [intervalMillis] if
+  /// [startLinkMonitor] was not called, and stopped again when the last
+  /// listener leaves. The stream is shared by all listeners, so the
+  /// arguments of the first call win.
+  ///
+  Stream<Map<dynamic, dynamic>> linkQualityChanges(
+      {int throttleMillis = 1000, int intervalMillis = 2000}) {
+    if (_linkQuality == null) {
+      Map<String, dynamic> args = new Map();
+      args['throttleMillis'] = throttleMillis;
+      args['intervalMillis'] = intervalMillis;
+      _linkQuality = _linkQualityChannel
+          .receiveBroadcastStream(args)
+          .map<Map<dynamic, dynamic>>((event) => event);
+    }
+    return _linkQuality;
   }
 
-  Future<bool> connectToNetwork({String ssid, String password}) async {
-    Map<String, String> args = new Map();
+  /// [identity] is only needed for enterprise (EAP) networks, which are
+  /// joined with PEAP/MSCHAPv2.
+  ///
+  /// On Android Q and later networks are joined with a
+  /// WifiNetworkSpecifier unless [backend] is 'legacy', the
+  /// WifiConfiguration path older releases always take (on Q and later
+  /// it only works for apps targeting an SDK below 29). With the
+  /// specifier [localOnly] asks for a network without internet access
+  /// and [bindProcess] routes all of the app's traffic over it once it
+  /// is up.
+  ///
+  /// Credentials that cannot work for the security of the network fail
+  /// with INVALID_CREDENTIALS before anything is saved: WPA/WPA3
+  /// passphrases take 8 to 63 printable ASCII characters (or, for WPA
+  /// on the legacy path, a 64 digit hex key), WEP keys 5 or 13
+  /// characters or 10 or 26 hex digits, and enterprise networks an
+  /// [identity].
+  ///
+  /// Connect calls run one at a time. A call still waiting for its turn
+  /// fails with SUPERSEDED when a newer one with different arguments
+  /// arrives.
+  ///
+  /// With [pinBssid] the device stays on the best access point of the
+  /// SSID, see [bestBssids], instead of roaming between them.
+  ///
+  Future<bool> connectToNetwork(
+      {String ssid,
+      String password,
+      String identity,
+      String backend,
+      bool localOnly = false,
+      bool bindProcess = false,
+      bool pinBssid = false}) async {
+    Map<String, dynamic> args = new Map();
     args['ssid'] = ssid;
     args['password'] = password;
+    args['identity'] = identity;
+    args['backend'] = backend;
+    args['localOnly'] = localOnly;
+    args['bindProcess'] = bindProcess;
+    args['pinBssid'] = pinBssid;
     return await _channel.invokeMethod('connectToNetwork', args);
   }
 
+  /// Like [connectToNetwork] but completes only once the device is
+  /// associated with the network and has an IP address. Fails with
+  /// ASSOCIATION_TIMEOUT after [timeoutMillis] or AUTHENTICATION_FAILED.
+  ///
+  /// Returns {connected, backend, timeToAssociateMillis, timeToIpMillis}.
+  /// timeToIpMillis is null on networks without IPv4.
+  ///
+  Future<Map<dynamic, dynamic>> connectAndWait(
+      {String ssid,
+      String password,
+      int timeoutMillis = 15000,
+      String backend,
+      bool localOnly = false,
+      bool bindProcess = false,
+      bool pinBssid = false}) async {
+    Map<String, dynamic> args = new Map();
+    args['ssid'] = ssid;
+    args['password'] = password;
+    args['backend'] = backend;
+    args['localOnly'] = localOnly;
+    args['bindProcess'] = bindProcess;
+    args['pinBssid'] = pinBssid;
+    args['awaitConnection'] = true;
+    args['timeoutMillis'] = timeoutMillis;
+    return await _channel.invokeMapMethod('connectToNetwork', args);
+  }
+
+  /// Like [connectToNetwork], or [connectAndWait] with [awaitConnection],
+  /// but failed attempts are retried natively as [retry] allows, see
+  /// [WifiRetryPolicy].
+  ///
+  /// Returns {connected, error, attempts} plus, when awaited, the
+  /// details of [connectAndWait]. error is the code of the last failure
+  /// and each attempt is {ok, error, freshProfile, backoffMillis,
+  /// millis}.
+  ///
+  Future<Map<dynamic, dynamic>> connectWithRetry(
+      {String ssid,
+      String password,
+      String identity,
+      String backend,
+      bool localOnly = false,
+      bool bindProcess = false,
+      bool pinBssid = false,
+      bool awaitConnection = false,
+      int timeoutMillis = 15000,
+      WifiRetryPolicy retry = const WifiRetryPolicy()}) async {
+    Map<String, dynamic> args = new Map();
+    args['ssid'] = ssid;
+    args['password'] = password;
+    args['identity'] = identity;
+    args['backend'] = backend;
+    args['localOnly'] = localOnly;
+    args['bindProcess'] = bindProcess;
+    args['pinBssid'] = pinBssid;
+    args['awaitConnection'] = awaitConnection;
+    args['timeoutMillis'] = timeoutMillis;
+    args['retry'] = retry.toMap();
+    return await _channel.invokeMapMethod('connectToNetwork', args);
+  }
+
+  /// Connects to the best network out of [candidates] in a single
+  /// call. Each candidate is a map of {ssid, password, priority}.
+  /// Visible candidates are tried by priority, then signal level, and
+  /// after them the ones that are configured but not visible (such as
+  /// hidden networks), by priority, until one succeeds. With
+  /// [awaitConnection] a candidate only counts once it has an IP, see
+  /// [connectAndWait].
+  ///
+  /// Returns {ssid, attempts}, ssid is null if no candidate connected.
+  ///
+  Future<Map<dynamic, dynamic>> connectToBest(
+      List<Map<String, dynamic>> candidates,
+      {bool awaitConnection = false,
+      int timeoutMillis = 15000,
+      String backend,
+      bool localOnly = false,
+      bool bindProcess = false,
+      bool pinBssid = false}) async {
+    Map<String, dynamic> args = new Map();
+    args['candidates'] = candidates;
+    args['backend'] = backend;
+    args['localOnly'] = localOnly;
+    args['bindProcess'] = bindProcess;
+    args['pinBssid'] = pinBssid;
+    args['awaitConnection'] = awaitConnection;
+    args['timeoutMillis'] = timeoutMillis;
+    return await _channel.invokeMapMethod('connectToBest', args);
+  }
+
+  /// Prepares a later switch to [ssid]: the security and the best BSSID
+  /// are resolved from the latest scan and the profile is saved (for
+  /// the specifier backend the network request is built instead), so
+  /// that [activateStaged] only has to switch. Fails like
+  /// [connectToNetwork] for a network that cannot be joined. Waits for a
+  /// connect that is running, but never supersedes or is superseded.
+  ///
+  /// Returns {handle, backend, bssid, preConfigured}. Only the latest 16
+  /// staged networks are kept.
+  ///
+  Future<Map<dynamic, dynamic>> stageNetwork(
+      {String ssid,
+      String password,
+      String identity,
+      String backend,
+      bool localOnly = false,
+      bool bindProcess = false,
+      bool pinBssid = false}) async {
+    Map<String, dynamic> args = new Map();
+    args['ssid'] = ssid;
+    args['password'] = password;
+    args['identity'] = identity;
+    args['backend'] = backend;
+    args['localOnly'] = localOnly;
+    args['bindProcess'] = bindProcess;
+    args['pinBssid'] = pinBssid;
+    return await _channel.invokeMapMethod('stageNetwork', args);
+  }
+
+  /// Switches to the network staged as [handle], which uses the handle
+  /// up. Completes with true once the switch is under way or, with
+  /// [awaitConnection], with the result of [connectAndWait]. Fails with
+  /// NETWORK_NOT_STAGED for an unknown or used handle.
+  ///
+  Future<dynamic> activateStaged(int handle,
+      {bool awaitConnection = false, int timeoutMillis = 15000}) async {
+    Map<String, dynamic> args = new Map();
+    args['handle'] = handle;
+    args['awaitConnection'] = awaitConnection;
+    args['timeoutMillis'] = timeoutMillis;
+    return await _channel.invokeMethod('activateStaged', args);
+  }
+
+  /// Forgets [handle] without switching. A profile saved while staging
+  /// stays saved, see [forgetNetworks].
+  ///
+  Future<bool> discardStaged(int handle) async {
+    Map<String, dynamic> args = new Map();
+    args['handle'] = handle;
+    return await _channel.invokeMethod('discardStaged', args);
+  }
+
+  /// The best access points of [ssid] in the latest scan, ranked by
+  /// signal level, band (5/6 GHz first) and how crowded their channel
+  /// is. The first one is what a connect with pinBssid stays on.
+  ///
+  /// Returns [{bssid, level, frequency}], best first.
+  ///
+  Future<List<dynamic>> bestBssids(String ssid) async {
+    Map<String, dynamic> args = new Map();
+    args['ssid'] = ssid;
+    return await _channel.invokeMethod('getBestBssids', args);
+  }
+
   Future<bool> disconnect() async {
     return await _channel.invokeMethod('disconnect');
   }
+
+  /// Removes every saved profile of [ssids] in one batch. Profiles
+  /// saved by other apps cannot be removed on Android M and later.
+  ///
+  /// Returns the number of profiles removed.
+  ///
+  Future<int> forgetNetworks(List<String> ssids) async {
+    Map<String, dynamic> args = new Map();
+    args['ssids'] = ssids;
+    return await _channel.invokeMethod('forgetNetworks', args);
+  }
+
+  /// Removes duplicate profiles saved for the same SSID, together with
+  /// every profile of the [stale] SSIDs, in one batch.
+  ///
+  /// Returns the number of profiles removed.
+  ///
+  Future<int> pruneProfiles({List<String> stale}) async {
+    Map<String, dynamic> args = new Map();
+    args['stale'] = stale;
+    return await _channel.invokeMethod('pruneProfiles', args);
+  }
+
+  /// Per-method latency numbers of the native dispatcher, keyed by
+  /// method name: {count, avgMicros, maxMicros, avgQueueMicros}. The
+  /// 'singleFlight' entry has {leaders, joined} for reads that shared a
+  /// computation, 'connectQueue' has {superseded, joined}.
+  ///
+  Future<Map<dynamic, dynamic>> get dispatchStats async {
+    return await _channel.invokeMapMethod('getDispatchStats');
+  }
+
+  /// Hit and miss counters of the native configured networks cache:
+  /// {hits, misses, invalidations, size}.
+  ///
+  Future<Map<dynamic, dynamic>> get cacheStats async {
+    return await _channel.invokeMapMethod('getCacheStats');
+  }
+
+  /// Counters of the scan scheduler: {requests, cached, coalesced,
+  /// started, throttled, nextScanInMillis}.
+  ///
+  Future<Map<dynamic, dynamic>> get scanStats async {
+    return await _channel.invokeMapMethod('getScanStats');
+  }
+
+  /// Latency histograms of the connect pipeline, keyed by phase (READY,
+  /// CONFIGURED_LOOKUP, SCAN_LOOKUP, ADD_NETWORK, UPDATE_NETWORK,
+  /// REMOVE_NETWORKS, ENABLE_NETWORK, RECONNECT, ASSOCIATE, DHCP,
+  /// REQUEST_NETWORK, LEGACY_CONNECT, SPECIFIER_CONNECT, CONNECT).
+  /// Each phase has {count, avgMicros, p50Micros, p95Micros, p99Micros,
+  /// maxMicros}.
+  ///
+  Future<Map<dynamic, dynamic>> get metrics async {
+    return await _channel.invokeMapMethod('getMetrics');
+  }
+
+  Future<bool> resetMetrics() async {
+    return await _channel.invokeMethod('resetMetrics');
+  }
+
+  /// Recent events of the native trace buffer, oldest first. Each event
+  /// is {seq, event, ref, a, b, ageMicros}.
+  ///
+  Future<List<dynamic>> dumpTrace() async {
+    return await _channel.invokeListMethod('dumpTrace');
+  }
+
+  /// Trace verbosity: 0 off, 1 errors, 2 info (default), 3 debug. Debug
+  /// also mirrors every event to logcat.
+  ///
+  Future<bool> setTraceLevel(int level) async {
+    Map<String, dynamic> args = new Map();
+    args['level'] = level;
+    return await _channel.invokeMethod('setTraceLevel', args);
+  }
+
+  static List<dynamic> _decodeNetworks(dynamic response) {
+    if (response is! Map) {
+      return response;
+    }
+
+    List<dynamic> ssids = response['ssids'];
+    List<dynamic> capabilities = response['capabilities'];
+    Int32List ssid = response['ssid'];
+    Int32List capability = response['capability'];
+    Int32List security = response['security'];
+    Int32List level = response['level'];
+    Int32List frequency = response['frequency'];
+    Uint8List bssid = response['bssid'];
+
+    // Columns left out by a query projection are missing.
+    int count = response['count'];
+    bool stale = response['stale'] == true;
+    List<dynamic> list = new List(count);
+    for (int i = 0; i < count; i++) {
+      Map<String, String> m = new Map();
+      if (ssid != null) {
+        m['ssid'] = ssids[ssid[i]];
+      }
+      if (bssid != null) {
+        m['bssid'] = _bssid(bssid, i * 6);
+      }
+      if (security != null) {
+        m['security'] = security[i].toString();
+      } else if (capability != null) {
+        m['capabilities'] = capabilities[capability[i]];
+      }
+      if (level != null) {
+        m['level'] = level[i].toString();
+      }
+      if (frequency != null) {
+        m['frequency'] = frequency[i].toString();
+      }
+      if (stale) {
+        m['stale'] = 'true';
+      }
+      list[i] = m;
+    }
+    return list;
+  }
+
+  /// Null for all zeros, which is how a missing BSSID is sent, so that
+  /// both formats decode it the same.
+  static String _bssid(Uint8List bytes, int offset) {
+    if (bytes.sublist(offset, offset + 6).every((b) => b == 0)) {
+      return null;
+    }
+    StringBuffer sb = new StringBuffer();
+    for (int i = 0; i < 6; i++) {
+      if (i > 0) {
+        sb.write(':');
+      }
+      sb.write(bytes[offset + i].toRadixString(16).padLeft(2, '0'));
+    }
+    return sb.toString();
+  }
+}
+
+/// Bits of the 'security' mask returned by [WifiSettings.listNetworks].
+class WifiSecurity {
+  static const int wep = 1;
+  static const int wpa = 1 << 1;
+  static const int wpa2 = 1 << 2;
+  static const int psk = 1 << 3;
+  static const int sae = 1 << 4;
+  static const int owe = 1 << 5;
+  static const int eap = 1 << 6;
+  static const int pmfCapable = 1 << 7;
+  static const int pmfRequired = 1 << 8;
+  static const int ccmp = 1 << 9;
+  static const int tkip = 1 << 10;
+  static const int gcmp = 1 << 11;
+  static const int ft = 1 << 12;
+}
+
+/// Which networks [WifiSettings.listNetworks] and [WifiSettings.scan]
+/// return, and which of their fields. Every condition is optional and
+/// all of them have to match.
+class WifiQuery {
+  /// Only SSIDs starting with this.
+  final String ssidPrefix;
+
+  /// Only SSIDs containing a match of this (Java) regular expression.
+  final String ssidRegex;
+
+  /// Only networks at least this strong, in dBm.
+  final int minLevel;
+
+  /// '2.4', '5' or '6' GHz only.
+  final String band;
+
+  /// Only networks with any of these [WifiSecurity] bits.
+  final int securityMask;
+
+  /// Only the strongest matches, strongest first.
+  final int limit;
+
+  /// Any of 'ssid', 'bssid', 'capabilities' (or 'security'), 'level'
+  /// and 'frequency'. All of them when null.
+  final List<String> fields;
+
+  const WifiQuery(
+      {this.ssidPrefix,
+      this.ssidRegex,
+      this.minLevel,
+      this.band,
+      this.securityMask,
+      this.limit,
+      this.fields});
+
+  Map<String, dynamic> toMap() {
+    Map<String, dynamic> m = new Map();
+    m['ssidPrefix'] = ssidPrefix;
+    m['ssidRegex'] = ssidRegex;
+    m['minLevel'] = minLevel;
+    m['band'] = band;
+    m['securityMask'] = securityMask;
+    m['limit'] = limit;
+    m['fields'] = fields;
+    return m;
+  }
+}
+
+/// How [WifiSettings.connectWithRetry] retries.
+///
+/// FAILED_TO_ENABLE_NETWORK, RECONNECTION_FAILED, ASSOCIATION_TIMEOUT
+/// and WIFI_MANAGER_ERROR are retried, up to [attempts] in total. The
+/// n-th retry waits [initialBackoffMillis] * [multiplier]^n, at most
+/// [maxBackoffMillis], less a random share of up to [jitter] of that.
+/// With [fallbackToFresh] retries ignore a saved profile of the network
+/// and write a new one from the given credentials; AUTHENTICATION_FAILED
+/// is then retried once that way.
+class WifiRetryPolicy {
+  final int attempts;
+  final int initialBackoffMillis;
+  final int maxBackoffMillis;
+  final double multiplier;
+  final double jitter;
+  final bool fallbackToFresh;
+
+  const WifiRetryPolicy(
+      {this.attempts = 3,
+      this.initialBackoffMillis = 500,
+      this.maxBackoffMillis = 8000,
+      this.multiplier = 2.0,
+      this.jitter = 0.5,
+      this.fallbackToFresh = true});
+
+  Map<String, dynamic> toMap() {
+    Map<String, dynamic> m = new Map();
+    m['attempts'] = attempts;
+    m['initialBackoffMillis'] = initialBackoffMillis;
+    m['maxBackoffMillis'] = maxBackoffMillis;
+    m['multiplier'] = multiplier;
+    m['jitter'] = jitter;
+    m['fallbackToFresh'] = fallbackToFresh;
+    return m;
+  }
 }